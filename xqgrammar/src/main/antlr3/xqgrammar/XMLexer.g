@@ -48,6 +48,15 @@ package xqgrammar;
     boolean inTag      = true;
     boolean inAposAttr = false;
     boolean inQuotAttr = false;
+
+    @Override
+    protected void restart()
+    {
+        super.restart();
+        inTag = true;
+        inAposAttr = false;
+        inQuotAttr = false;
+    }
 }
 
 LAngle       : { !inTag }? => '<'  ;
@@ -67,15 +76,15 @@ Colon        : ':';
 
 DirCommentConstructor                                            // ws:explicit
     : { !inTag }? => 
-      '<!--' (options {greedy=false;} : .)*  '-->'
+      '<!--' { matchCharsUntil("-->"); } '-->'
     ;
 DirPIConstructor                                                 // ws:explicit 
     : { !inTag }? => 
-      '<?' VS? VNCName (VS (options {greedy=false;} : .)*)? '?>' 
+      '<?' VS? VNCName (VS { matchCharsUntil("?>"); })? '?>'
     ;
 CDataSection    
     : { !inTag }? => 
-      '<![CDATA[' (options {greedy=false;} : .)* ']]>'           // ws:explicit
+      '<![CDATA[' { matchCharsUntil("]]>"); } ']]>'              // ws:explicit
     ;
 ElementContentChar   // Char - [{}<&]       //  "   &   '   <  {  }
     : { !inTag }? =>                        // 22  26  27  3C 7B 7D
@@ -135,7 +144,7 @@ NCName
     ;
 fragment
 VNCName
-    : NCNameStartChar NCNameChar*
+    : NCNameStartChar { matchNCNameChars(); }
     ;
 fragment
 NCNameStartChar
@@ -144,6 +153,7 @@ NCNameStartChar
 fragment
 NCNameChar  
     // NameChar - ':'  http://www.w3.org/TR/REC-xml-names/#NT-NCName
+    // Matched by NameChars in VNCName. LexerTest checks that they agree.
     : 'A'..'Z'           | 'a'..'z'           | '_' 
     | '\u00C0'..'\u00D6' | '\u00D8'..'\u00F6' | '\u00F8'..'\u02FF' 
     | '\u0370'..'\u037D' | '\u037F'..'\u1FFF' | '\u200C'..'\u200D' 
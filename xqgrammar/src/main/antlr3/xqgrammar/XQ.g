@@ -41,6 +41,18 @@
 
 grammar XQ;
 
+// Comments of the form /*@{name}*/ are markers for the build, which makes
+// a copy of this grammar for each of the files in src/main/dialects with
+// the markers replaced. A marker named after an extension disables the
+// rest of its line when the extension is not part of the dialect, so that
+// the parser of the dialect does not even have the alternatives of the
+// extension. Only alternatives which can be removed whole are marked, so
+// that the markers make no difference to XQParser. The few others, such
+// as applyExpr, are kept and disabled by their gates. Markers package and
+// imports move the copy to a package of its own. The copy made with
+// src/main/dialects/traced.properties is the parser which builds syntax
+// trees, and marker traced tells Parser that it is that one.
+
 // Tokens shared with the direct XML lexer
 tokens {
     LAngle;
@@ -82,7 +94,8 @@ tokens {
 
 =============================================================================*/
 
-package xqgrammar;
+package xqgrammar/*@{package}*/;
+/*@{imports}*/
 }
 
 @lexer::header {
@@ -104,12 +117,19 @@ package xqgrammar;
 
 =============================================================================*/
 
-package xqgrammar;
+package xqgrammar/*@{package}*/;
+/*@{imports}*/
 }
 
 @members {
     // Pass some token codes to super class at creation time.
     boolean dummy = setTokenCodes(NCName, Colon);
+
+    public XQParser(TokenStream input, Dialect dialect)
+    {
+        super(input, new RecognizerSharedState(), dialect);
+    }
+    /*@{traced}*/
 }
 
 module
@@ -135,7 +155,7 @@ prolog
           | setter 
           | namespaceDecl 
           | importDecl
-          | ftOptionDecl                                        // ext:fulltext
+/*@{fullText}*/          | ftOptionDecl                           // ext:fulltext
       ) ';')* 
       ((
             contextItemDecl
@@ -152,7 +172,7 @@ setter
     | emptyOrderDecl 
     | copyNamespacesDecl
     | decimalFormatDecl
-    | {update}? => revalidationDecl                             // ext:update
+/*@{update}*/    | {update}? => revalidationDecl                // ext:update
     ;
 boundarySpaceDecl
     : DECLARE BOUNDARY_SPACE (PRESERVE | STRIP)
@@ -251,10 +271,10 @@ functionDecl
     : (updateFunModifier | scriptingFunModifier)?
       FUNCTION efQName '(' paramList? ')'
       (AS sequenceType)? (functionBody | EXTERNAL)
-    | {scripting}? =>                                       // ext:sctipting 
-      SEQUENTIAL
-      FUNCTION efQName '(' paramList? ')'
-      (AS sequenceType)? (block        | EXTERNAL)
+/*@{scripting}*/    | {scripting}? =>                          // ext:scripting
+/*@{scripting}*/      SEQUENTIAL
+/*@{scripting}*/      FUNCTION efQName '(' paramList? ')'
+/*@{scripting}*/      (AS sequenceType)? (block        | EXTERNAL)
     ;
 updateFunModifier
     : {update}? => UPDATING
@@ -295,15 +315,15 @@ exprSingle
     | ifExpr
     | tryCatchExpr
     | orExpr
-    | {update}?                => insertExpr                      // ext:update 
-    | {update}?                => deleteExpr                      // ext:update
-    | {update}?                => renameExpr                      // ext:update
-    | {update}?                => replaceExpr                     // ext:update
-    | {update}?                => transformExpr                   // ext:update
-    | {scripting}?             => blockExpr                    // ext:scripting
-    | {scripting}?             => assignmentExpr               // ext:scripting
-    | {scripting}?             => exitExpr                     // ext:scripting
-    | {scripting}?             => whileExpr                    // ext:scripting
+/*@{update}*/    | {update}? => insertExpr                      // ext:update
+/*@{update}*/    | {update}? => deleteExpr                      // ext:update
+/*@{update}*/    | {update}? => renameExpr                      // ext:update
+/*@{update}*/    | {update}? => replaceExpr                     // ext:update
+/*@{update}*/    | {update}? => transformExpr                   // ext:update
+/*@{scripting}*/    | {scripting}? => blockExpr                 // ext:scripting
+/*@{scripting}*/    | {scripting}? => assignmentExpr            // ext:scripting
+/*@{scripting}*/    | {scripting}? => exitExpr                  // ext:scripting
+/*@{scripting}*/    | {scripting}? => whileExpr                 // ext:scripting
     ;
 flworExpr
     : initalClause intermediateClause* returnClause
@@ -324,7 +344,8 @@ forClause
     : FOR  forBinding (',' forBinding)*
     ;
 forBinding
-    : '$' varName typeDeclaration? allowingEmpty? positionalVar? ftScoreVar? 
+    : '$' varName typeDeclaration? allowingEmpty? positionalVar?
+/*@{fullText}*/      ftScoreVar?                                   // ext:fulltext
       IN exprSingle
     ;
 allowingEmpty
@@ -340,7 +361,9 @@ letClause
     : LET letBinding (',' letBinding)*
     ;
 letBinding
-    : (('$' varName typeDeclaration?) | ftScoreVar) ':=' exprSingle
+    : (('$' varName typeDeclaration?)
+/*@{fullText}*/      | ftScoreVar                                  // ext:fulltext
+      ) ':=' exprSingle
     ;
 windowClause 
     : FOR (tumblingWindowClause | slidingWindowClause)
@@ -462,7 +485,8 @@ comparisonExpr
     : ftContainsExpr ( (valueComp | generalComp | nodeComp) ftContainsExpr )?
     ;
 ftContainsExpr                                                  // ext:fulltext
-    : stringConcatExpr ftContainsClause?
+    : stringConcatExpr
+/*@{fullText}*/      ftContainsClause?                             // ext:fulltext
     ;
 stringConcatExpr
     : rangeExpr ('||' rangeExpr)*
@@ -534,7 +558,7 @@ validationMode
     : LAX | STRICT
     ;
 extensionExpr
-    : (Pragma { parsePragma(); })+ LCurly expr? RCurly
+    : Pragma+ LCurly expr? RCurly
     ;
 		//W3C grammar :
 		//pragma                                                         // ws:explicit
@@ -670,8 +694,8 @@ constructor
     ;
 directConstructor
     : dirElemConstructor
-    | DirCommentConstructor { parseDirComment(); }
-    | DirPIConstructor      { parseDirPI();      }
+    | DirCommentConstructor { checkDirComment(); }
+    | DirPIConstructor      { checkDirPI();      }
     ;
 dirElemConstructor                                               // ws:explicit
     : LAngle  { enterDirXml (); } 
@@ -981,7 +1005,7 @@ ftWordsValue
     | LCurly expr RCurly
     ;
 ftExtensionSelection
-    : (Pragma { parsePragma(); })+ LCurly ftSelection? RCurly
+    : Pragma+ LCurly ftSelection? RCurly
     ;
 ftAnyAllOption
     : ANY WORD?
@@ -1351,218 +1375,220 @@ EscapeLCurly            : '{{';
 fragment
 EscapeRCurly            : '}}';
 
-ANCESTOR                : 'ancestor';
-ANCESTOR_OR_SELF        : 'ancestor-or-self';
-AND                     : 'and';
-AS                      : 'as';
-ASCENDING               : 'ascending';
-AT                      : 'at';
-ATTRIBUTE               : 'attribute';
-BASE_URI                : 'base-uri';
-BOUNDARY_SPACE          : 'boundary-space';
-BY                      : 'by';
-CASE                    : 'case';
-CASTABLE                : 'castable';
-CAST                    : 'cast';
-CHILD                   : 'child';
-COLLATION               : 'collation';
-COMMENT                 : 'comment';
-CONSTRUCTION            : 'construction';
-COPY                    : 'copy';
-COPY_NAMESPACES         : 'copy-namespaces';
-DECLARE                 : 'declare';
-DEFAULT                 : 'default';
-DESCENDANT              : 'descendant';
-DESCENDANT_OR_SELF      : 'descendant-or-self';
-DESCENDING              : 'descending';
-DIV                     : 'div';
-DOCUMENT                : 'document';
-DOCUMENT_NODE           : 'document-node';
-ELEMENT                 : 'element';
-ELSE                    : 'else';
-EMPTY                   : 'empty';
-EMPTY_SEQUENCE          : 'empty-sequence';
-ENCODING                : 'encoding';
-EQ                      : 'eq';
-EVERY                   : 'every';
-EXCEPT                  : 'except';
-EXTERNAL                : 'external';
-FOLLOWING               : 'following';
-FOLLOWING_SIBLING       : 'following-sibling';
-FOR                     : 'for';
-FUNCTION                : 'function';
-GE                      : 'ge';
-GREATEST                : 'greatest';
-GT                      : 'gt';
-IDIV                    : 'idiv';
-IF                      : 'if';
-IMPORT                  : 'import';
-INHERIT                 : 'inherit';
-IN                      : 'in';
-INSTANCE                : 'instance';
-INTERSECT               : 'intersect';
-IS                      : 'is';
-ITEM                    : 'item';
-LAX                     : 'lax';
-LEAST                   : 'least';
-LE                      : 'le';
-LET                     : 'let';
-LT                      : 'lt';
-MOD                     : 'mod';
-MODULE                  : 'module';
-NAMESPACE               : 'namespace';
-NE                      : 'ne';
-NODE                    : 'node';
-NO_INHERIT              : 'no-inherit';
-NO_PRESERVE             : 'no-preserve';
-OF                      : 'of';
-OPTION                  : 'option';
-ORDERED                 : 'ordered';
-ORDERING                : 'ordering';
-ORDER                   : 'order';
-OR                      : 'or';
-PARENT                  : 'parent';
-PRECEDING               : 'preceding';
-PRECEDING_SIBLING       : 'preceding-sibling';
-PRESERVE                : 'preserve';
-PROCESSING_INSTRUCTION  : 'processing-instruction';
-RETURN                  : 'return';
-SATISFIES               : 'satisfies';
-SCHEMA_ATTRIBUTE        : 'schema-attribute';
-SCHEMA_ELEMENT          : 'schema-element';
-SCHEMA                  : 'schema';
-SELF                    : 'self';
-SIMPLE                  : 'simple';
-SOME                    : 'some';
-STABLE                  : 'stable';
-STRICT                  : 'strict';
-STRIP                   : 'strip';
-TEXT                    : 'text';
-THEN                    : 'then';
-TO                      : 'to';
-TREAT                   : 'treat';
-TYPE                    : 'type';
-TYPESWITCH              : 'typeswitch';
-UNION                   : 'union';
-UNORDERED               : 'unordered';
-VALIDATE                : 'validate';
-VARIABLE                : 'variable';
-VERSION                 : 'version';
-WHERE                   : 'where';
-XQUERY                  : 'xquery';
+// Keywords. Fragments only define token types: keywords are matched by
+// NCName and told apart from other names by Keywords.
+fragment ANCESTOR                : 'ancestor';
+fragment ANCESTOR_OR_SELF        : 'ancestor-or-self';
+fragment AND                     : 'and';
+fragment AS                      : 'as';
+fragment ASCENDING               : 'ascending';
+fragment AT                      : 'at';
+fragment ATTRIBUTE               : 'attribute';
+fragment BASE_URI                : 'base-uri';
+fragment BOUNDARY_SPACE          : 'boundary-space';
+fragment BY                      : 'by';
+fragment CASE                    : 'case';
+fragment CASTABLE                : 'castable';
+fragment CAST                    : 'cast';
+fragment CHILD                   : 'child';
+fragment COLLATION               : 'collation';
+fragment COMMENT                 : 'comment';
+fragment CONSTRUCTION            : 'construction';
+fragment COPY                    : 'copy';
+fragment COPY_NAMESPACES         : 'copy-namespaces';
+fragment DECLARE                 : 'declare';
+fragment DEFAULT                 : 'default';
+fragment DESCENDANT              : 'descendant';
+fragment DESCENDANT_OR_SELF      : 'descendant-or-self';
+fragment DESCENDING              : 'descending';
+fragment DIV                     : 'div';
+fragment DOCUMENT                : 'document';
+fragment DOCUMENT_NODE           : 'document-node';
+fragment ELEMENT                 : 'element';
+fragment ELSE                    : 'else';
+fragment EMPTY                   : 'empty';
+fragment EMPTY_SEQUENCE          : 'empty-sequence';
+fragment ENCODING                : 'encoding';
+fragment EQ                      : 'eq';
+fragment EVERY                   : 'every';
+fragment EXCEPT                  : 'except';
+fragment EXTERNAL                : 'external';
+fragment FOLLOWING               : 'following';
+fragment FOLLOWING_SIBLING       : 'following-sibling';
+fragment FOR                     : 'for';
+fragment FUNCTION                : 'function';
+fragment GE                      : 'ge';
+fragment GREATEST                : 'greatest';
+fragment GT                      : 'gt';
+fragment IDIV                    : 'idiv';
+fragment IF                      : 'if';
+fragment IMPORT                  : 'import';
+fragment INHERIT                 : 'inherit';
+fragment IN                      : 'in';
+fragment INSTANCE                : 'instance';
+fragment INTERSECT               : 'intersect';
+fragment IS                      : 'is';
+fragment ITEM                    : 'item';
+fragment LAX                     : 'lax';
+fragment LEAST                   : 'least';
+fragment LE                      : 'le';
+fragment LET                     : 'let';
+fragment LT                      : 'lt';
+fragment MOD                     : 'mod';
+fragment MODULE                  : 'module';
+fragment NAMESPACE               : 'namespace';
+fragment NE                      : 'ne';
+fragment NODE                    : 'node';
+fragment NO_INHERIT              : 'no-inherit';
+fragment NO_PRESERVE             : 'no-preserve';
+fragment OF                      : 'of';
+fragment OPTION                  : 'option';
+fragment ORDERED                 : 'ordered';
+fragment ORDERING                : 'ordering';
+fragment ORDER                   : 'order';
+fragment OR                      : 'or';
+fragment PARENT                  : 'parent';
+fragment PRECEDING               : 'preceding';
+fragment PRECEDING_SIBLING       : 'preceding-sibling';
+fragment PRESERVE                : 'preserve';
+fragment PROCESSING_INSTRUCTION  : 'processing-instruction';
+fragment RETURN                  : 'return';
+fragment SATISFIES               : 'satisfies';
+fragment SCHEMA_ATTRIBUTE        : 'schema-attribute';
+fragment SCHEMA_ELEMENT          : 'schema-element';
+fragment SCHEMA                  : 'schema';
+fragment SELF                    : 'self';
+fragment SIMPLE                  : 'simple';
+fragment SOME                    : 'some';
+fragment STABLE                  : 'stable';
+fragment STRICT                  : 'strict';
+fragment STRIP                   : 'strip';
+fragment TEXT                    : 'text';
+fragment THEN                    : 'then';
+fragment TO                      : 'to';
+fragment TREAT                   : 'treat';
+fragment TYPE                    : 'type';
+fragment TYPESWITCH              : 'typeswitch';
+fragment UNION                   : 'union';
+fragment UNORDERED               : 'unordered';
+fragment VALIDATE                : 'validate';
+fragment VARIABLE                : 'variable';
+fragment VERSION                 : 'version';
+fragment WHERE                   : 'where';
+fragment XQUERY                  : 'xquery';
 // start of ext:update tokens
-AFTER                   : 'after';
-BEFORE                  : 'before';
-DELETE                  : 'delete';
-FIRST                   : 'first';
-INSERT                  : 'insert';
-INTO                    : 'into';
-LAST                    : 'last';
-MODIFY                  : 'modify';
-NODES                   : 'nodes';
-RENAME                  : 'rename';
-REPLACE                 : 'replace';
-REVALIDATION            : 'revalidation';
-SKIP                    : 'skip';
-UPDATING                : 'updating';
-VALUE                   : 'value';
-WITH                    : 'with';
+fragment AFTER                   : 'after';
+fragment BEFORE                  : 'before';
+fragment DELETE                  : 'delete';
+fragment FIRST                   : 'first';
+fragment INSERT                  : 'insert';
+fragment INTO                    : 'into';
+fragment LAST                    : 'last';
+fragment MODIFY                  : 'modify';
+fragment NODES                   : 'nodes';
+fragment RENAME                  : 'rename';
+fragment REPLACE                 : 'replace';
+fragment REVALIDATION            : 'revalidation';
+fragment SKIP                    : 'skip';
+fragment UPDATING                : 'updating';
+fragment VALUE                   : 'value';
+fragment WITH                    : 'with';
 // end   of ext:update    tokens
 // start of ext:scripting tokens
-BLOCK                   : 'block';
-ASSIGNABLE              : 'assignable';
-UNASSIGNABLE            : 'unassignable';
-EXIT                    : 'exit';
-SEQUENTIAL              : 'sequential';
-RETURNING               : 'returning';
-WHILE                   : 'while';
+fragment BLOCK                   : 'block';
+fragment ASSIGNABLE              : 'assignable';
+fragment UNASSIGNABLE            : 'unassignable';
+fragment EXIT                    : 'exit';
+fragment SEQUENTIAL              : 'sequential';
+fragment RETURNING               : 'returning';
+fragment WHILE                   : 'while';
 // end   of ext:scripting tokens
 // start of ext:fulltext  tokens
-ALL                     : 'all';
-ANY                     : 'any';
-CONTENT                 : 'content';
-DIACRITICS              : 'diacritics';
-DIFFERENT               : 'different';
-DISTANCE                : 'distance';
-END                     : 'end';
-ENTIRE                  : 'entire';
-EXACTLY                 : 'exactly';
-FROM                    : 'from';
-FTAND                   : 'ftand';
-CONTAINS                : 'contains';
-FTNOT                   : 'ftnot';
-FT_OPTION               : 'ft-option';
-FTOR                    : 'ftor';
-INSENSITIVE             : 'insensitive';
-LANGUAGE                : 'language';
-LEVELS                  : 'levels';
-LOWERCASE               : 'lowercase';
-MOST                    : 'most';
-NO                      : 'no';
-NOT                     : 'not';
-OCCURS                  : 'occurs';
-PARAGRAPH               : 'paragraph';
-PARAGRAPHS              : 'paragraphs';
-PHRASE                  : 'phrase';
-RELATIONSHIP            : 'relationship';
-SAME                    : 'same';
-SCORE                   : 'score';
-SENSITIVE               : 'sensitive';
-SENTENCE                : 'sentence';
-SENTENCES               : 'sentences';
-START                   : 'start';
-STEMMING                : 'stemming';
-STOP                    : 'stop';
-THESAURUS               : 'thesaurus';
-TIMES                   : 'times';
-UPPERCASE               : 'uppercase';
-USING                   : 'using';
-WEIGHT                  : 'weight';
-WILDCARDS               : 'wildcards';
-WINDOW                  : 'window';
-WITHOUT                 : 'without';
-WORD                    : 'word';
-WORDS                   : 'words';
+fragment ALL                     : 'all';
+fragment ANY                     : 'any';
+fragment CONTENT                 : 'content';
+fragment DIACRITICS              : 'diacritics';
+fragment DIFFERENT               : 'different';
+fragment DISTANCE                : 'distance';
+fragment END                     : 'end';
+fragment ENTIRE                  : 'entire';
+fragment EXACTLY                 : 'exactly';
+fragment FROM                    : 'from';
+fragment FTAND                   : 'ftand';
+fragment CONTAINS                : 'contains';
+fragment FTNOT                   : 'ftnot';
+fragment FT_OPTION               : 'ft-option';
+fragment FTOR                    : 'ftor';
+fragment INSENSITIVE             : 'insensitive';
+fragment LANGUAGE                : 'language';
+fragment LEVELS                  : 'levels';
+fragment LOWERCASE               : 'lowercase';
+fragment MOST                    : 'most';
+fragment NO                      : 'no';
+fragment NOT                     : 'not';
+fragment OCCURS                  : 'occurs';
+fragment PARAGRAPH               : 'paragraph';
+fragment PARAGRAPHS              : 'paragraphs';
+fragment PHRASE                  : 'phrase';
+fragment RELATIONSHIP            : 'relationship';
+fragment SAME                    : 'same';
+fragment SCORE                   : 'score';
+fragment SENSITIVE               : 'sensitive';
+fragment SENTENCE                : 'sentence';
+fragment SENTENCES               : 'sentences';
+fragment START                   : 'start';
+fragment STEMMING                : 'stemming';
+fragment STOP                    : 'stop';
+fragment THESAURUS               : 'thesaurus';
+fragment TIMES                   : 'times';
+fragment UPPERCASE               : 'uppercase';
+fragment USING                   : 'using';
+fragment WEIGHT                  : 'weight';
+fragment WILDCARDS               : 'wildcards';
+fragment WINDOW                  : 'window';
+fragment WITHOUT                 : 'without';
+fragment WORD                    : 'word';
+fragment WORDS                   : 'words';
 // end   of ext:fulltext tokens
 // start of XQuery 3.0   tokens
-CATCH                   : 'catch';
-CONTEXT                 : 'context';
-DETERMINISTIC           : 'deterministic';
-NAMESPACE_NODE          : 'namespace-node';
-NONDETERMINISTIC        : 'nondeterministic';
-PRIVATE                 : 'private';
-PUBLIC                  : 'public';
-TRY                     : 'try';
-SWITCH                  : 'switch';
+fragment CATCH                   : 'catch';
+fragment CONTEXT                 : 'context';
+fragment DETERMINISTIC           : 'deterministic';
+fragment NAMESPACE_NODE          : 'namespace-node';
+fragment NONDETERMINISTIC        : 'nondeterministic';
+fragment PRIVATE                 : 'private';
+fragment PUBLIC                  : 'public';
+fragment TRY                     : 'try';
+fragment SWITCH                  : 'switch';
 // tokens related to decimal formats
-DECIMAL_FORMAT          : 'decimal-format';
-DECIMAL_SEPARATOR       : 'decimal-separator';
-DIGIT                   : 'digit';
-GROUPING_SEPARATOR      : 'grouping-separator';
-INFINITY                : 'infinity';
-MINUS_SIGN              : 'minus-sign';
-NAN                     : 'NaN';
-PER_MILLE               : 'per-mille';
-PERCENT                 : 'percent';
-PATTERN_SEPARATOR       : 'pattern-separator';
-ZERO_DIGIT              : 'zero-digit';
+fragment DECIMAL_FORMAT          : 'decimal-format';
+fragment DECIMAL_SEPARATOR       : 'decimal-separator';
+fragment DIGIT                   : 'digit';
+fragment GROUPING_SEPARATOR      : 'grouping-separator';
+fragment INFINITY                : 'infinity';
+fragment MINUS_SIGN              : 'minus-sign';
+fragment NAN                     : 'NaN';
+fragment PER_MILLE               : 'per-mille';
+fragment PERCENT                 : 'percent';
+fragment PATTERN_SEPARATOR       : 'pattern-separator';
+fragment ZERO_DIGIT              : 'zero-digit';
 // tokens related to flwor enhancements
-COUNT                   : 'count';
-GROUP                   : 'group';
-NEXT                    : 'next';
-ONLY                    : 'only';
-PREVIOUS                : 'previous';
-SLIDING                 : 'sliding';
-TUMBLING                : 'tumbling';
-WHEN                    : 'when';
-ALLOWING                : 'allowing';
+fragment COUNT                   : 'count';
+fragment GROUP                   : 'group';
+fragment NEXT                    : 'next';
+fragment ONLY                    : 'only';
+fragment PREVIOUS                : 'previous';
+fragment SLIDING                 : 'sliding';
+fragment TUMBLING                : 'tumbling';
+fragment WHEN                    : 'when';
+fragment ALLOWING                : 'allowing';
 // end of XQuery 3.0 tokens
 
 DirCommentConstructor                                            // ws:explicit
-    : '<!--' (options {greedy=false;} : . )* '-->'   
+    : '<!--' { matchCharsUntil("-->"); } '-->'
     ;
 DirPIConstructor    
-    : '<?' VS? NCName (VS (options {greedy=false;} : . )*)? '?>' // ws:explicit
+    : '<?' VS? NCNamePart (VS { matchCharsUntil("?>"); })? '?>'  // ws:explicit
     ;
 /*
 // Only allowed within direct XML and hence - parsed by XMLexer
@@ -1571,7 +1597,8 @@ CDataSection
     ;
 */
 Pragma
-    : '(#' VS? NCName (Colon NCName)? (VS (options {greedy=false;} : .)*)? '#)'
+    : '(#' VS? NCNamePart (Colon NCNamePart)?
+      (VS { matchCharsUntil("#)"); })? '#)'
     ;
 /*
 // W3C grammar :
@@ -1603,16 +1630,18 @@ DecimalLiteral
 DoubleLiteral
     : (('.' Digits) | (Digits ('.' '0'..'9'*)?)) ('e' | 'E') ('+'|'-')? Digits
     ;
+// Actions match the rest of a run of characters in bulk, escapes included.
+// Same for contents of comments and other constructs with a terminator.
 StringLiteral
     : Quot (
-          options {greedy=false;}:
-          (PredefinedEntityRef | CharRef | EscapeQuot | ~(Quot  | '&'))*
-      )
+          ~(Quot | '&') { matchStringChars('"'); }
+        | EscapeQuot | PredefinedEntityRef | CharRef
+      )*
       Quot  
     | Apos (
-          options {greedy=false;}:
-          (PredefinedEntityRef | CharRef | EscapeApos | ~(Apos | '&'))*
-      )
+          ~(Apos | '&') { matchStringChars('\''); }
+        | EscapeApos | PredefinedEntityRef | CharRef
+      )*
       Apos
     ;
 PredefinedEntityRef
@@ -1630,13 +1659,24 @@ BracedURILiteral
     : 'Q{' BracedURISymbol* RCurly
     ;
 Comment
-    : '(:' (options {greedy=false;}: Comment | . )* ':)' { $channel = HIDDEN; }
+    : '(:' { matchCommentChars(); } ':)'
+      { $channel = HIDDEN; skipHidden(); }
     ;
 NCName
-    : NCNameStartChar NCNameChar*
+    : NCNameStartChar
+      {
+          matchNCNameChars();
+          $type = keywordType();
+      }
+    ;
+// Name within another token, which is never a keyword.
+fragment
+NCNamePart
+    : NCNameStartChar { matchNCNameChars(); }
     ;
 S
-    : ('\u0009' | '\u000A' | '\u000D' | '\u0020')+ { $channel = HIDDEN; }
+    : ('\u0009' | '\u000A' | '\u000D' | '\u0020')+
+      { $channel = HIDDEN; skipHidden(); }
     ;
 fragment
 VS
@@ -1662,6 +1702,7 @@ NCNameStartChar
 fragment
 NCNameChar
     // NameChar - ':'  http://www.w3.org/TR/REC-xml-names/#NT-NCName
+    // Matched by NameChars in NCName. LexerTest checks that they agree.
     : 'A'..'Z'           | 'a'..'z'           | '_' 
     | '\u00C0'..'\u00D6' | '\u00D8'..'\u00F6' | '\u00F8'..'\u02FF' 
     | '\u0370'..'\u037D' | '\u037F'..'\u1FFF' | '\u200C'..'\u200D' 
@@ -0,0 +1,270 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.util.Arrays;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * Common base of the character streams in this package. Keeps track of
+ * current index, line and position in line and implements marking and
+ * rewinding on top of them. Subclasses only need to know how to read and
+ * step over characters of their specific input.
+ * <p>
+ * Index values are opaque to the lexers and tokens: they need not be
+ * character offsets (see {@link MappedFileStream}) as long as they grow
+ * monotonically and are understood by {@link #substring(int, int)}.
+ * <p>
+ * Start indices of lines are recorded as the stream is read, so that line
+ * and position in line of any index already read can be computed later
+ * (see {@link #getLine(int)}). This allows lexers to leave positions of
+ * tokens unset - see {@link Lexer#setLazyPositions(boolean)}.
+ */
+public abstract class AbstractCharStream
+    implements CharStream
+{
+    private static final int INITIAL_MARK_DEPTH = 8;
+
+    protected int            p;
+    protected int            line               = 1;
+    protected int            charPositionInLine = 0;
+    // Marker states are kept in parallel arrays, so that mark() does not
+    // allocate. Slot 0 is unused - markers start from 1.
+    private int[]            markIndex          = new int[INITIAL_MARK_DEPTH];
+    private int[]            markLine           = new int[INITIAL_MARK_DEPTH];
+    private int[]            markPosition       = new int[INITIAL_MARK_DEPTH];
+    private int              markDepth          = 0;
+    private int              lastMarker;
+    private String           sourceName;
+    // Start indices of the lines read so far.
+    private int[]            lineStarts         = new int[64];
+    private int              numLines           = 1;
+
+    protected AbstractCharStream(int start, String sourceName)
+    {
+        this.p = start;
+        this.sourceName = sourceName;
+        this.lineStarts[0] = start;
+    }
+
+    /**
+     * Rewinds the stream to its beginning so that it can be parsed again.
+     */
+    public abstract void reset();
+
+    /**
+     * Rewinds the stream to specified index and to the beginning of line.
+     *
+     * @param start the index to start from
+     */
+    protected void reset(int start)
+    {
+        p = start;
+        line = 1;
+        charPositionInLine = 0;
+        markDepth = 0;
+    }
+
+    /**
+     * Called by subclasses when they consume a line feed.
+     * 
+     * @param start index following the line feed
+     */
+    protected final void newLine(int start)
+    {
+        if (start > lineStarts[numLines - 1]) {
+            if (numLines == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, 2 * numLines);
+            }
+            lineStarts[numLines++] = start;
+        }
+    }
+
+    /**
+     * Computes line number of specified index, which must have been read.
+     * 
+     * @param index the index
+     * @return line of the index, starting from 1
+     */
+    public int getLine(int index)
+    {
+        return lineOf(index) + 1;
+    }
+
+    /**
+     * Computes position in line of specified index, which must have been
+     * read.
+     * 
+     * @param index the index
+     * @return position of the index in its line, starting from 0
+     */
+    public int getCharPositionInLine(int index)
+    {
+        return countChars(lineStarts[lineOf(index)], index);
+    }
+
+    /**
+     * Counts characters between two indices. Subclasses whose indices are
+     * not character offsets must override this method.
+     * 
+     * @param start index of first character
+     * @param end   index following last character
+     * @return number of characters
+     */
+    protected int countChars(int start, int end)
+    {
+        return end - start;
+    }
+
+    // Index of the last line starting at or before specified index.
+    private int lineOf(int index)
+    {
+        int low = 0;
+        int high = numLines - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lineStarts[middle] <= index) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Consumes characters up to the first occurrence of either of two
+     * characters or up to the end of input. Lexers use it to step over
+     * bodies of literals and comments without a prediction per character.
+     * Subclasses may override it with a faster loop over their data.
+     * 
+     * @param c1 a character to stop at
+     * @param c2 another character to stop at
+     * @return the character stopped at, which is not consumed, or EOF
+     */
+    public int consumeUntil(char c1, char c2)
+    {
+        for (;;) {
+            int c = LA(1);
+            if (c == c1 || c == c2 || c == EOF) {
+                return c;
+            }
+            consume();
+        }
+    }
+
+    @Override
+    public int LT(int i)
+    {
+        return LA(i);
+    }
+
+    @Override
+    public int index()
+    {
+        return p;
+    }
+
+    @Override
+    public int mark()
+    {
+        markDepth++;
+        if (markDepth >= markIndex.length) {
+            int length = 2 * markIndex.length;
+            markIndex = Arrays.copyOf(markIndex, length);
+            markLine = Arrays.copyOf(markLine, length);
+            markPosition = Arrays.copyOf(markPosition, length);
+        }
+        markIndex[markDepth] = p;
+        markLine[markDepth] = line;
+        markPosition[markDepth] = charPositionInLine;
+        lastMarker = markDepth;
+        return markDepth;
+    }
+
+    @Override
+    public void rewind(int marker)
+    {
+        seek(markIndex[marker]);
+        line = markLine[marker];
+        charPositionInLine = markPosition[marker];
+        release(marker);
+    }
+
+    @Override
+    public void rewind()
+    {
+        rewind(lastMarker);
+    }
+
+    @Override
+    public void release(int marker)
+    {
+        markDepth = marker - 1;
+    }
+
+    /**
+     * Moves to specified index. Line and position in line are updated
+     * when moving forward only, exactly as ANTLRStringStream does.
+     */
+    @Override
+    public void seek(int index)
+    {
+        if (index <= p) {
+            p = index;
+            return;
+        }
+        int size = size();
+        while (p < index && p < size) {
+            consume();
+        }
+    }
+
+    @Override
+    public int getLine()
+    {
+        return line;
+    }
+
+    @Override
+    public void setLine(int line)
+    {
+        this.line = line;
+    }
+
+    @Override
+    public int getCharPositionInLine()
+    {
+        return charPositionInLine;
+    }
+
+    @Override
+    public void setCharPositionInLine(int pos)
+    {
+        this.charPositionInLine = pos;
+    }
+
+    @Override
+    public String getSourceName()
+    {
+        return sourceName;
+    }
+}
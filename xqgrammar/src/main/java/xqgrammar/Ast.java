@@ -0,0 +1,382 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * Syntax tree of a query, built by the parser of package xqgrammar.traced
+ * given it by {@link Parser#setAst(Ast)}. That parser is generated with
+ * option trace and adds nodes upon entry to and exit from rules, which the
+ * other parsers do not pay for. There is a node for each rule of the grammar
+ * matched, spanning the tokens the rule matched - a rule which matched no
+ * tokens has a stop index one less than its start index. Rules tried by
+ * syntactic predicates and not taken leave no nodes.
+ * <p>
+ * Nodes are numbers rather than objects, given in preorder from 0 for the
+ * root, and their fields are kept in arrays of int - about 20 bytes per
+ * node. The first child of a node is the next node in preorder if it has
+ * children at all, so it is not stored. Trees can be walked with a
+ * {@link Cursor} or by node numbers. Text of nodes is in the token stream
+ * the tree was built from.
+ * <p>
+ * The kind of a node is the index of its rule in the parser which built the
+ * tree.
+ */
+public final class Ast
+{
+    private int[]    kinds;
+    private int[]    starts;
+    private int[]    stops;
+    private int[]    parents;
+    private int[]    nextSiblings;
+    private int      size;
+    // Names of rules indexed by kind.
+    private String[] kindNames    = new String[256];
+    // State of building - the innermost node not yet closed, the number of
+    // such nodes and the last child of each of them.
+    private int      current      = -1;
+    private int      depth;
+    private int[]    lastChildren = new int[64];
+
+    /**
+     * Creates an empty tree.
+     */
+    public Ast()
+    {
+        this(1024);
+    }
+
+    /**
+     * Creates an empty tree with room for a number of nodes.
+     *
+     * @param capacity number of nodes the tree has room for, it grows as
+     *                 needed
+     */
+    public Ast(int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        kinds = new int[capacity];
+        starts = new int[capacity];
+        stops = new int[capacity];
+        parents = new int[capacity];
+        nextSiblings = new int[capacity];
+    }
+
+    /**
+     * Removes all nodes. Storage is kept for the next tree.
+     */
+    public void clear()
+    {
+        size = 0;
+        current = -1;
+        depth = 0;
+    }
+
+    /**
+     * Retrieves the number of nodes.
+     *
+     * @return the number of nodes
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Creates a cursor at the root of the tree.
+     *
+     * @return the cursor
+     */
+    public Cursor cursor()
+    {
+        return new Cursor();
+    }
+
+    public int getKind(int node)
+    {
+        check(node);
+        return kinds[node];
+    }
+
+    public String getKindName(int node)
+    {
+        check(node);
+        return kindNames[kinds[node]];
+    }
+
+    /**
+     * Retrieves the index of the first token of a node.
+     */
+    public int getTokenStartIndex(int node)
+    {
+        check(node);
+        return starts[node];
+    }
+
+    /**
+     * Retrieves the index of the last token of a node.
+     */
+    public int getTokenStopIndex(int node)
+    {
+        check(node);
+        return stops[node];
+    }
+
+    /**
+     * Retrieves the parent of a node, -1 for the root.
+     */
+    public int getParent(int node)
+    {
+        check(node);
+        return parents[node];
+    }
+
+    /**
+     * Retrieves the first child of a node, -1 if there is none.
+     */
+    public int getFirstChild(int node)
+    {
+        check(node);
+        return node + 1 < size && parents[node + 1] == node ? node + 1 : -1;
+    }
+
+    /**
+     * Retrieves the next sibling of a node, -1 if there is none.
+     */
+    public int getNextSibling(int node)
+    {
+        check(node);
+        return nextSiblings[node];
+    }
+
+    /**
+     * Retrieves the text of a node - the input from the first character of
+     * its first token to the last character of its last token.
+     *
+     * @param node   the node
+     * @param tokens the token stream the tree was built from
+     * @return the text
+     */
+    public String getText(int node, XQTokenStream tokens)
+    {
+        check(node);
+        // The end of input is not a token of the stream.
+        int stop = Math.min(stops[node], tokens.size() - 1);
+        if (stop < starts[node]) {
+            return "";
+        }
+        CharStream source = ((Lexer) tokens.getTokenSource()).getCharStream();
+        return source.substring(tokens.getStartIndex(starts[node]),
+                                tokens.getStopIndex(stop));
+    }
+
+    /**
+     * Renders the tree as nested lists of kind names, such as
+     * "(module (mainModule ...))".
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        if (size == 0) {
+            return "";
+        }
+        int node = 0;
+        for (;;) {
+            int child = getFirstChild(node);
+            if (child >= 0) {
+                sb.append('(').append(kindNames[kinds[node]]).append(' ');
+                node = child;
+                continue;
+            }
+            sb.append(kindNames[kinds[node]]);
+            while (nextSiblings[node] < 0) {
+                node = parents[node];
+                if (node < 0) {
+                    return sb.toString();
+                }
+                sb.append(')');
+            }
+            sb.append(' ');
+            node = nextSiblings[node];
+        }
+    }
+
+    // Adds a node for a rule entered at a token.
+    void open(int kind, String kindName, int start)
+    {
+        if (size == kinds.length) {
+            grow();
+        }
+        if (kind >= kindNames.length) {
+            String[] names = new String[2 * kind];
+            System.arraycopy(kindNames, 0, names, 0, kindNames.length);
+            kindNames = names;
+        }
+        // Kinds of parsers of different dialects may differ.
+        kindNames[kind] = kindName;
+        int node = size++;
+        kinds[node] = kind;
+        starts[node] = start;
+        stops[node] = start - 1;
+        parents[node] = current;
+        nextSiblings[node] = -1;
+        if (depth > 0) {
+            int previous = lastChildren[depth - 1];
+            if (previous >= 0) {
+                nextSiblings[previous] = node;
+            }
+            lastChildren[depth - 1] = node;
+        }
+        if (depth == lastChildren.length) {
+            lastChildren = copyOf(lastChildren, 2 * depth);
+        }
+        lastChildren[depth++] = -1;
+        current = node;
+    }
+
+    // Completes the innermost node at the last token matched by its rule.
+    void close(int stop)
+    {
+        if (current < 0) {
+            return;
+        }
+        stops[current] = stop;
+        current = parents[current];
+        depth--;
+    }
+
+    private void grow()
+    {
+        int capacity = 2 * kinds.length;
+        kinds = copyOf(kinds, capacity);
+        starts = copyOf(starts, capacity);
+        stops = copyOf(stops, capacity);
+        parents = copyOf(parents, capacity);
+        nextSiblings = copyOf(nextSiblings, capacity);
+    }
+
+    private static int[] copyOf(int[] array, int length)
+    {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private void check(int node)
+    {
+        if (node < 0 || node >= size)
+            throw new IndexOutOfBoundsException("No node " + node + ".");
+    }
+
+    /**
+     * Position in the tree, moved from node to node. The moves return false
+     * and leave the cursor where it is when there is no node to move to.
+     */
+    public final class Cursor
+    {
+        private int node;
+
+        private Cursor()
+        {
+        }
+
+        /**
+         * Retrieves the node the cursor is at.
+         *
+         * @return the node - 0 for the root
+         */
+        public int getNode()
+        {
+            return node;
+        }
+
+        public int getKind()
+        {
+            return Ast.this.getKind(node);
+        }
+
+        public String getKindName()
+        {
+            return Ast.this.getKindName(node);
+        }
+
+        public int getTokenStartIndex()
+        {
+            return Ast.this.getTokenStartIndex(node);
+        }
+
+        public int getTokenStopIndex()
+        {
+            return Ast.this.getTokenStopIndex(node);
+        }
+
+        public String getText(XQTokenStream tokens)
+        {
+            return Ast.this.getText(node, tokens);
+        }
+
+        /**
+         * Moves the cursor to a node.
+         *
+         * @param node the node
+         */
+        public void gotoNode(int node)
+        {
+            check(node);
+            this.node = node;
+        }
+
+        public boolean gotoParent()
+        {
+            return go(getParent(node));
+        }
+
+        public boolean gotoFirstChild()
+        {
+            return go(getFirstChild(node));
+        }
+
+        public boolean gotoNextSibling()
+        {
+            return go(getNextSibling(node));
+        }
+
+        /**
+         * Moves the cursor to the next node in preorder - the first child
+         * of the node, or else the next sibling of the node or of its
+         * nearest ancestor which has one.
+         */
+        public boolean gotoNext()
+        {
+            return node + 1 < size && go(node + 1);
+        }
+
+        private boolean go(int to)
+        {
+            if (to < 0) {
+                return false;
+            }
+            node = to;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * Character stream which reads and decodes its input lazily, as the lexer
+ * advances, so that a query coming from a socket, an archive entry or any
+ * other stream does not have to be read into a String before it is parsed.
+ * <p>
+ * The encoding is chosen once, before anything is decoded, from the first
+ * bytes of the input:
+ * <ol>
+ * <li>A byte order mark for UTF-8, UTF-16BE or UTF-16LE wins and is skipped.
+ * </li>
+ * <li>Otherwise UTF-16 without byte order mark is recognized by the zero
+ * bytes of its first character.</li>
+ * <li>Otherwise the encoding named in a version declaration (<code>xquery
+ * version "3.0" encoding "..."</code>) is used, provided that it is supported
+ * and compatible with ASCII so that the declaration reads the same in it.
+ * </li>
+ * <li>Otherwise the default encoding, UTF-8 unless specified.</li>
+ * </ol>
+ * The first bytes are those returned by a single read of the channel, up to
+ * 1024 of them. A read which returns fewer bytes than asked for means that
+ * the rest of the input is not there yet - a client on a socket may even
+ * wait for a reply before it sends more - so the stream does not wait for
+ * more bytes in order to choose the encoding. A declaration or byte order
+ * mark cut by the end of the first read is not recognized.
+ * Decoded characters are kept in fixed size chunks for the life of the
+ * stream, because tokens ask for their text and the parser compares names
+ * of element tags long after the lexer has moved past them. Parsing can
+ * start before the input is complete and no String or byte array of the
+ * whole input is made, but the decoded input is held in the end - two
+ * bytes per character - even with a bounded {@link XQTokenStream}.
+ * <p>
+ * The channel must be blocking. The channel is not closed by this class.
+ */
+public class ByteChannelStream
+    extends AbstractCharStream
+{
+    static final int                  CHUNK_SHIFT = 12;
+    static final int                  CHUNK_SIZE  = 1 << CHUNK_SHIFT;
+    private static final int          CHUNK_MASK  = CHUNK_SIZE - 1;
+    // Encoding is chosen from that many bytes at most.
+    private static final int          SNIFF_SIZE  = 1024;
+    private static final int          BUFFER_SIZE = 8192;
+
+    private final ReadableByteChannel channel;
+    private final String              encoding;
+    private final CharsetDecoder      decoder;
+    private final ByteBuffer          bytes;
+    // Set to null once the decoder has been flushed.
+    private CharBuffer                decoded;
+    private boolean                   endOfInput;
+    private char[][]                  chunks      = new char[16][];
+    private int                       n;
+
+    /**
+     * Creates a stream over an UTF-8 encoded input stream.
+     *
+     * @param in         the input
+     * @param sourceName name of the source to be reported in errors
+     * @throws IOException if reading of the first bytes fails
+     */
+    public ByteChannelStream(InputStream in, String sourceName)
+        throws IOException
+    {
+        this(Channels.newChannel(in), sourceName, "UTF-8");
+    }
+
+    /**
+     * Creates a stream over a channel.
+     *
+     * @param channel         the input
+     * @param sourceName      name of the source to be reported in errors
+     * @param defaultEncoding encoding to be used if the input neither starts
+     *                        with a byte order mark nor declares encoding
+     * @throws IOException if reading of the first bytes fails
+     * @throws IllegalArgumentException if the channel is in non-blocking
+     *                                  mode
+     */
+    public ByteChannelStream(ReadableByteChannel channel, String sourceName,
+                             String defaultEncoding)
+        throws IOException
+    {
+        super(0, sourceName);
+        if (channel instanceof SelectableChannel
+                && !((SelectableChannel) channel).isBlocking())
+            throw new IllegalArgumentException("Channel must be blocking.");
+        this.channel = channel;
+        this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        this.decoded = CharBuffer.allocate(CHUNK_SIZE);
+        // Either the read fills the prefix or it is short, in which case more
+        // input may only come after the query has been parsed.
+        bytes.limit(SNIFF_SIZE);
+        read();
+        bytes.flip();
+        Charset charset = sniff(Charset.forName(defaultEncoding));
+        this.encoding = charset.name();
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Retrieves name of the encoding chosen for the input.
+     *
+     * @return canonical name of the charset used for decoding
+     */
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Rewinds the stream to its beginning so that it can be parsed again.
+     * Characters already decoded are not decoded again.
+     */
+    public void reset()
+    {
+        reset(0);
+    }
+
+    @Override
+    public void consume()
+    {
+        if (p < n || fill()) {
+            charPositionInLine++;
+            if (charAt(p) == '\n') {
+                line++;
+                charPositionInLine = 0;
+                newLine(p + 1);
+            }
+            p++;
+        }
+    }
+
+    @Override
+    public int LA(int i)
+    {
+        if (i == 0) {
+            return 0;
+        }
+        int index = i > 0 ? p + i - 1 : p + i;
+        if (index < 0) {
+            return CharStream.EOF;
+        }
+        while (index >= n) {
+            if (!fill()) {
+                return CharStream.EOF;
+            }
+        }
+        return charAt(index);
+    }
+
+    /**
+     * Retrieves number of characters decoded so far. Size of the whole input
+     * is not known before the lexer reaches its end.
+     */
+    @Override
+    public int size()
+    {
+        return n;
+    }
+
+    @Override
+    public String substring(int start, int stop)
+    {
+        StringBuilder sb = new StringBuilder(stop - start + 1);
+        int index = start;
+        while (index <= stop) {
+            int offset = index & CHUNK_MASK;
+            int length = Math.min(CHUNK_SIZE - offset, stop - index + 1);
+            sb.append(chunks[index >> CHUNK_SHIFT], offset, length);
+            index += length;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        while (fill()) {
+        }
+        return n > 0 ? substring(0, n - 1) : "";
+    }
+
+    private char charAt(int index)
+    {
+        return chunks[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    // Decodes at least one more character. Returns false at end of input.
+    // Reads from the channel only when no buffered byte is left to decode.
+    private boolean fill()
+    {
+        if (decoded == null) {
+            return false;
+        }
+        int start = n;
+        for (;;) {
+            CoderResult result = decoder.decode(bytes, decoded, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                decoder.flush(decoded);
+                append();
+                decoded = null;
+                return n > start;
+            }
+            append();
+            if (n > start) {
+                return true;
+            }
+            bytes.compact();
+            read();
+            bytes.flip();
+        }
+    }
+
+    // Moves decoded characters to the chunks.
+    private void append()
+    {
+        decoded.flip();
+        while (decoded.hasRemaining()) {
+            int chunk = n >> CHUNK_SHIFT;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new char[CHUNK_SIZE];
+            }
+            int offset = n & CHUNK_MASK;
+            int length = Math.min(CHUNK_SIZE - offset, decoded.remaining());
+            decoded.get(chunks[chunk], offset, length);
+            n += length;
+        }
+        decoded.clear();
+    }
+
+    // Reads at least one byte unless at end of input. A blocking channel
+    // returns no bytes only if there is no room for them, which the callers
+    // rule out, so nothing read means the channel does not block.
+    private void read()
+    {
+        try {
+            int count = channel.read(bytes);
+            if (count < 0) {
+                endOfInput = true;
+            }
+            else if (count == 0) {
+                throw new IOException("no bytes read, channel must be "
+                        + "blocking");
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error reading "
+                    + (getSourceName() != null ? getSourceName() : "input")
+                    + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Chooses the charset and skips byte order mark if there is one.
+    private Charset sniff(Charset defaultCharset)
+    {
+        int b0 = byteAt(0);
+        int b1 = byteAt(1);
+        int b2 = byteAt(2);
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            bytes.position(3);
+            return Charset.forName("UTF-8");
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            bytes.position(2);
+            return Charset.forName("UTF-16BE");
+        }
+        if (b0 == 0xFF && b1 == 0xFE) {
+            bytes.position(2);
+            return Charset.forName("UTF-16LE");
+        }
+        if (b0 == 0 && b1 > 0) {
+            return Charset.forName("UTF-16BE");
+        }
+        if (b0 > 0 && b1 == 0) {
+            return Charset.forName("UTF-16LE");
+        }
+        String declared = declaredEncoding();
+        if (declared != null) {
+            try {
+                Charset charset = Charset.isSupported(declared) ? Charset
+                        .forName(declared) : null;
+                if (charset != null && charset.canEncode()) {
+                    byte[] ascii = "xquery encoding".getBytes("ISO-8859-1");
+                    if (Arrays.equals(ascii, "xquery encoding"
+                            .getBytes(charset.name()))) {
+                        return charset;
+                    }
+                }
+            }
+            catch (IllegalCharsetNameException e) {
+                // reported by the parser
+            }
+            catch (IOException e) {
+                // can not happen for a supported charset
+            }
+        }
+        return defaultCharset;
+    }
+
+    // Encoding name from version declaration in the first bytes of input
+    // or null if there is none. Bytes are read as ISO-8859-1, which is
+    // enough for the ASCII-only syntax of the declaration.
+    private String declaredEncoding()
+    {
+        int i = skipSpaceAndComments(0);
+        if (!matchWord(i, "xquery")) {
+            return null;
+        }
+        i = skipSpaceAndComments(i + 6);
+        if (matchWord(i, "version")) {
+            i = skipLiteral(skipSpaceAndComments(i + 7));
+            if (i < 0) {
+                return null;
+            }
+            i = skipSpaceAndComments(i);
+        }
+        if (!matchWord(i, "encoding")) {
+            return null;
+        }
+        int start = skipSpaceAndComments(i + 8);
+        int end = skipLiteral(start);
+        if (end < 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(end - start - 2);
+        for (int k = start + 1; k < end - 1; k++) {
+            sb.append((char) byteAt(k));
+        }
+        return sb.toString().trim();
+    }
+
+    private int skipSpaceAndComments(int i)
+    {
+        int depth = 0;
+        for (;;) {
+            int b = byteAt(i);
+            if (b < 0) {
+                return i;
+            }
+            if (depth > 0) {
+                if (b == ':' && byteAt(i + 1) == ')') {
+                    depth--;
+                    i += 2;
+                }
+                else if (b == '(' && byteAt(i + 1) == ':') {
+                    depth++;
+                    i += 2;
+                }
+                else {
+                    i++;
+                }
+            }
+            else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                i++;
+            }
+            else if (b == '(' && byteAt(i + 1) == ':') {
+                depth++;
+                i += 2;
+            }
+            else {
+                return i;
+            }
+        }
+    }
+
+    // Offset following a string literal at specified offset or -1.
+    private int skipLiteral(int i)
+    {
+        int quote = byteAt(i);
+        if (quote != '"' && quote != '\'') {
+            return -1;
+        }
+        for (int k = i + 1; k < bytes.limit(); k++) {
+            if (byteAt(k) == quote) {
+                return k + 1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matchWord(int i, String word)
+    {
+        for (int k = 0; k < word.length(); k++) {
+            if (byteAt(i + k) != word.charAt(k)) {
+                return false;
+            }
+        }
+        int next = byteAt(i + word.length());
+        return !(next >= 'a' && next <= 'z' || next >= 'A' && next <= 'Z'
+                || next >= '0' && next <= '9' || next == '-' || next == '_'
+                || next == '.');
+    }
+
+    // Byte at specified offset of the sniffed prefix or -1 past its end.
+    private int byteAt(int i)
+    {
+        return i < bytes.limit() ? bytes.get(i) & 0xFF : -1;
+    }
+}
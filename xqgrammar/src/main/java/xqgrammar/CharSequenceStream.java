@@ -0,0 +1,187 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.util.Arrays;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * A replacement for ANTLRStringStream which reads characters directly from
+ * a CharSequence instead of copying them into a private array first. Since
+ * queries usually arrive as strings this halves the transient memory needed
+ * for a parse. The same instance is shared by {@link XQLexer}, by the
+ * {@link XMLexer} instances created for direct XML and by {@link Parser}
+ * for its "add-on" parsing.
+ * <p>
+ * The character sequence must not change while it is being parsed.
+ */
+public class CharSequenceStream
+    extends AbstractCharStream
+{
+    private static final int   NEXT_CACHE_SIZE = 128;
+
+    private final CharSequence data;
+    private final String       string;
+    private final int          n;
+    // Cached results of next(c, from) - see consumeUntil().
+    private int[]              nextFrom;
+    private int[]              nextIndex;
+
+    public CharSequenceStream(CharSequence data)
+    {
+        this(data, null);
+    }
+
+    public CharSequenceStream(CharSequence data, String sourceName)
+    {
+        super(0, sourceName);
+        this.data = data;
+        this.string = data instanceof String ? (String) data : null;
+        this.n = data.length();
+    }
+
+    /**
+     * Rewinds the stream to its beginning so that it can be parsed again.
+     */
+    public void reset()
+    {
+        reset(0);
+    }
+
+    /**
+     * Retrieves the underlying character sequence.
+     *
+     * @return the sequence being parsed
+     */
+    public CharSequence getCharSequence()
+    {
+        return data;
+    }
+
+    /**
+     * Random access to the underlying characters which, unlike LA(), does not
+     * depend on current position of the stream.
+     *
+     * @param index absolute character index
+     * @return the character at specified index
+     */
+    public char charAt(int index)
+    {
+        return data.charAt(index);
+    }
+
+    @Override
+    public void consume()
+    {
+        if (p < n) {
+            charPositionInLine++;
+            if (data.charAt(p) == '\n') {
+                line++;
+                charPositionInLine = 0;
+                newLine(p + 1);
+            }
+            p++;
+        }
+    }
+
+    /**
+     * Steps over characters with String.indexOf() when the sequence is a
+     * String, which the JVM implements much faster than a loop over
+     * charAt() and with SIMD instructions where available. Positions found
+     * are remembered, so that searching for a character which is far away
+     * or absent does not scan the same characters again at each call.
+     */
+    @Override
+    public int consumeUntil(char c1, char c2)
+    {
+        if (string == null || c1 >= NEXT_CACHE_SIZE || c2 >= NEXT_CACHE_SIZE) {
+            return super.consumeUntil(c1, c2);
+        }
+        int stop = Math.min(next(c1, p), next(c2, p));
+        int lineFeed = next('\n', p);
+        if (lineFeed >= stop) {
+            charPositionInLine += stop - p;
+        }
+        else {
+            while (lineFeed < stop) {
+                line++;
+                newLine(lineFeed + 1);
+                charPositionInLine = stop - lineFeed - 1;
+                lineFeed = next('\n', lineFeed + 1);
+            }
+        }
+        p = stop;
+        return stop < n ? string.charAt(stop) : CharStream.EOF;
+    }
+
+    // Index of first occurrence of an ASCII character at or after specified
+    // index or n if there is none.
+    private int next(char c, int from)
+    {
+        if (nextFrom == null) {
+            nextFrom = new int[NEXT_CACHE_SIZE];
+            nextIndex = new int[NEXT_CACHE_SIZE];
+            Arrays.fill(nextFrom, Integer.MAX_VALUE);
+        }
+        if (from >= nextFrom[c] && from <= nextIndex[c]) {
+            return nextIndex[c];
+        }
+        int index = string.indexOf(c, from);
+        nextFrom[c] = from;
+        nextIndex[c] = index >= 0 ? index : n;
+        return nextIndex[c];
+    }
+
+    @Override
+    public int LA(int i)
+    {
+        if (i == 0) {
+            return 0;
+        }
+        if (i < 0) {
+            i++;
+            if ((p + i - 1) < 0) {
+                return CharStream.EOF;
+            }
+        }
+        if ((p + i - 1) >= n) {
+            return CharStream.EOF;
+        }
+        return data.charAt(p + i - 1);
+    }
+
+    @Override
+    public int size()
+    {
+        return n;
+    }
+
+    @Override
+    public String substring(int start, int stop)
+    {
+        return data.subSequence(start, stop + 1).toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return data.toString();
+    }
+}
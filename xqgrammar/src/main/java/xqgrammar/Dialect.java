@@ -0,0 +1,106 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+/**
+ * XQuery dialect accepted by a {@link Parser}: language version and the
+ * extensions enabled on top of it. Instances are immutable, so the same one
+ * may be given to any number of parsers working in different threads.
+ */
+public final class Dialect
+{
+    /**
+     * XQuery 3.0 with Update, Scripting and Full Text extensions.
+     */
+    public static final Dialect DEFAULT =
+        new Dialect(Parser.XQUERY_3_0, true, true, true);
+
+    private final int           xqVersion;
+    private final boolean       update;
+    private final boolean       scripting;
+    private final boolean       fullText;
+
+    /**
+     * Creates a dialect.
+     *
+     * @param xqVersion XQuery version - one of {@link Parser#XQUERY_1_0} or
+     *                  {@link Parser#XQUERY_3_0}. If strict XQuery 1.0 is
+     *                  needed then see also comments to flworExpr.
+     * @param update    whether XQuery Update is enabled
+     * @param scripting whether XQuery Scripting is enabled
+     * @param fullText  whether XQuery Full Text is enabled
+     */
+    public Dialect(int xqVersion, boolean update, boolean scripting,
+                   boolean fullText)
+    {
+        if (xqVersion != Parser.XQUERY_1_0 && xqVersion != Parser.XQUERY_3_0)
+            throw new IllegalArgumentException("Unknown XQuery version.");
+        this.xqVersion = xqVersion;
+        this.update = update;
+        this.scripting = scripting;
+        this.fullText = fullText;
+    }
+
+    public int getXqVersion()
+    {
+        return xqVersion;
+    }
+
+    public boolean getUpdate()
+    {
+        return update;
+    }
+
+    public boolean getScripting()
+    {
+        return scripting;
+    }
+
+    public boolean getFullText()
+    {
+        return fullText;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof Dialect)) {
+            return false;
+        }
+        Dialect other = (Dialect) o;
+        return xqVersion == other.xqVersion && update == other.update
+                && scripting == other.scripting && fullText == other.fullText;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 8 * xqVersion + (update ? 4 : 0) + (scripting ? 2 : 0)
+                + (fullText ? 1 : 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "XQuery " + (xqVersion == Parser.XQUERY_1_0 ? "1.0" : "3.0")
+                + (update ? " +update" : "")
+                + (scripting ? " +scripting" : "")
+                + (fullText ? " +fulltext" : "");
+    }
+}
@@ -0,0 +1,290 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.RecognitionException;
+
+/**
+ * Lexer for direct XML used by {@link Parser}. Tokens are the same as those
+ * of the generated {@link XMLexer}, but the rule to match is chosen by the
+ * lexical mode and the next few characters instead of by the prediction
+ * DFA of XMLexer, which evaluates the gated predicates of its rules at
+ * nearly every step. There are 4 modes, given by the flags of XMLexer:
+ * <ol>
+ * <li> Element content - inTag is false.</li>
+ * <li> Tag - inTag is true and no attribute value is open.</li>
+ * <li> Attribute value in quotes - inQuotAttr is true.</li>
+ * <li> Attribute value in apostrophes - inAposAttr is true.</li>
+ * </ol>
+ * Runs of content characters are matched by a single loop, without going
+ * through the rules for them.
+ * <p>
+ * Input which is not valid in the current mode is left to the generated
+ * prediction, so that errors are reported exactly as before. The same goes
+ * for the odd states XMLexer gets into on some invalid input, such as both
+ * attribute flags set or an attribute flag set outside of a tag.
+ */
+class DirXmlLexer
+    extends XMLexer
+{
+    // Stands for the quote of content outside of attribute values.
+    private static final int NO_QUOTE = -1;
+
+    DirXmlLexer()
+    {
+        super();
+    }
+
+    DirXmlLexer(CharStream input)
+    {
+        super(input);
+    }
+
+    @Override
+    public void mTokens()
+        throws RecognitionException
+    {
+        boolean matched;
+        if (!inTag) {
+            matched = !inQuotAttr && !inAposAttr && matchContent();
+        }
+        else if (inQuotAttr) {
+            matched = !inAposAttr && matchAttrValue('"', '\'');
+        }
+        else if (inAposAttr) {
+            matched = matchAttrValue('\'', '"');
+        }
+        else {
+            matched = matchTag();
+        }
+        if (!matched) {
+            super.mTokens();
+        }
+    }
+
+    private boolean matchContent()
+        throws RecognitionException
+    {
+        int c = input.LA(1);
+        switch (c) {
+        case '<':
+            switch (input.LA(2)) {
+            case '/':
+                mLClose();
+                return true;
+            case '?':
+                mDirPIConstructor();
+                return true;
+            case '!':
+                int next = input.LA(3);
+                if (next == '-') {
+                    mDirCommentConstructor();
+                    return true;
+                }
+                if (next == '[') {
+                    mCDataSection();
+                    return true;
+                }
+                return false;
+            default:
+                mLAngle();
+                return true;
+            }
+        case '{':
+        case '}':
+            return matchCurly(c);
+        case '&':
+            return matchReference();
+        default:
+            if (!isContentChar(c, NO_QUOTE)) {
+                return false;
+            }
+            matchContentChars(NO_QUOTE, ElementContentChar);
+            return true;
+        }
+    }
+
+    private boolean matchTag()
+        throws RecognitionException
+    {
+        int c = input.LA(1);
+        switch (c) {
+        case '>':
+            mRAngle();
+            return true;
+        case '/':
+            if (input.LA(2) != '>') {
+                return false;
+            }
+            mRClose();
+            return true;
+        case '=':
+            mSymEq();
+            return true;
+        case '"':
+            mQuot();
+            return true;
+        case '\'':
+            mApos();
+            return true;
+        case ':':
+            mColon();
+            return true;
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+            mS();
+            return true;
+        default:
+            if (!NameChars.isNCNameStartChar(c)) {
+                return false;
+            }
+            mNCName();
+            return true;
+        }
+    }
+
+    // Within an attribute value XMLexer also allows the tokens of a tag.
+    // Those which start with a content character only win over content
+    // when they are not followed by more of it. Names, white space and
+    // colons never do.
+    private boolean matchAttrValue(char quote, char otherQuote)
+        throws RecognitionException
+    {
+        int c = input.LA(1);
+        if (c == quote) {
+            if (input.LA(2) == quote) {
+                if (quote == '"') {
+                    mEscapeQuot();
+                }
+                else {
+                    mEscapeApos();
+                }
+            }
+            else if (quote == '"') {
+                mQuot();
+            }
+            else {
+                mApos();
+            }
+            return true;
+        }
+        switch (c) {
+        case '{':
+        case '}':
+            return matchCurly(c);
+        case '&':
+            return matchReference();
+        }
+        if (!isContentChar(c, quote)) {
+            return false;
+        }
+        if (!isContentChar(input.LA(2), quote)) {
+            switch (c) {
+            case '>':
+                mRAngle();
+                return true;
+            case '=':
+                mSymEq();
+                return true;
+            default:
+                if (c == otherQuote) {
+                    if (otherQuote == '"') {
+                        mQuot();
+                    }
+                    else {
+                        mApos();
+                    }
+                    return true;
+                }
+            }
+        }
+        else if (c == '/' && input.LA(2) == '>'
+                && !isContentChar(input.LA(3), quote)) {
+            mRClose();
+            return true;
+        }
+        matchContentChars(quote, quote == '"' ? QuotAttrContentChar
+                : AposAttrContentChar);
+        return true;
+    }
+
+    private boolean matchCurly(int c)
+        throws RecognitionException
+    {
+        if (c == '{') {
+            if (input.LA(2) == '{') {
+                mEscapeLCurly();
+            }
+            else {
+                mLCurly();
+            }
+        }
+        else if (input.LA(2) == '}') {
+            mEscapeRCurly();
+        }
+        else {
+            mRCurly();
+        }
+        return true;
+    }
+
+    private boolean matchReference()
+        throws RecognitionException
+    {
+        switch (input.LA(2)) {
+        case '#':
+            mCharRef();
+            return true;
+        case 'l':
+        case 'g':
+        case 'a':
+        case 'q':
+            mPredefinedEntityRef();
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void matchContentChars(int quote, int type)
+    {
+        do {
+            input.consume();
+        } while (isContentChar(input.LA(1), quote));
+        state.type = type;
+        state.channel = DEFAULT_TOKEN_CHANNEL;
+    }
+
+    // Char - [{}<&] and the quote, if any - see ElementContentChar,
+    // QuotAttrContentChar and AposAttrContentChar.
+    private static boolean isContentChar(int c, int quote)
+    {
+        if (c < 0x20) {
+            return c == '\t' || c == '\n' || c == '\r';
+        }
+        if (c <= 0xD7FF) {
+            return c != '<' && c != '&' && c != '{' && c != '}'
+                    && c != quote;
+        }
+        return c >= 0xE000 && c <= 0xFFFD;
+    }
+}
@@ -0,0 +1,198 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * Keyword table of the XQuery lexer. Keyword rules of the grammar are
+ * fragments which only define token types: the lexer matches a name with its
+ * NCName rule and then looks the name up here, so that its prediction does
+ * not have to tell keywords from other names character by character. The
+ * keywords are taken from the token names of the generated parser, so the
+ * grammar is the only list of them.
+ * <p>
+ * The table is a perfect hash built by hash and displace when the class is
+ * loaded. Hash codes of keywords are split into buckets and each bucket gets
+ * a displacement which moves all its keywords to free slots. A lookup thus
+ * hashes the name, compares it with at most one keyword and allocates
+ * nothing.
+ */
+final class Keywords
+{
+    private static final int      TABLE_BITS = 9;
+    private static final int      TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int      BUCKETS    = 128;
+
+    private static final String[] words      = new String[TABLE_SIZE];
+    private static final int[]    types      = new int[TABLE_SIZE];
+    private static final int[]    displace   = new int[BUCKETS];
+    private static int            minLength  = Integer.MAX_VALUE;
+    private static int            maxLength;
+
+    private static List<String>   keywords   = new ArrayList<String>();
+    private static List<Integer>  codes      = new ArrayList<Integer>();
+
+    static {
+        for (int type = 0; type < XQParser.tokenNames.length; type++) {
+            String keyword = keyword(XQParser.tokenNames[type]);
+            if (keyword != null) {
+                add(keyword, type);
+            }
+        }
+        build();
+    }
+
+    private Keywords()
+    {
+    }
+
+    /**
+     * Retrieves token type of the name just matched by the lexer.
+     *
+     * @param input  the lexer input, positioned right after the name
+     * @param length difference of input indices at the end and at the start
+     *               of the name
+     * @return type of the keyword spelled by the name or
+     *         {@link XQLexer#NCName} if it is not a keyword
+     */
+    static int type(CharStream input, int length)
+    {
+        // Indices of a mapped file are byte offsets, so length may exceed
+        // the number of characters in the name. Then the characters looked
+        // at include some before the name, but a name with non-ASCII
+        // characters can not be a keyword anyway.
+        if (length < minLength || length > maxLength) {
+            return XQLexer.NCName;
+        }
+        int hash = 0;
+        for (int i = -length; i < 0; i++) {
+            int c = input.LA(i);
+            if (c > 0x7F) {
+                return XQLexer.NCName;
+            }
+            hash = 31 * hash + c;
+        }
+        int slot = slot(hash, displace[hash & (BUCKETS - 1)]);
+        String word = words[slot];
+        if (word == null || word.length() != length) {
+            return XQLexer.NCName;
+        }
+        for (int i = 0; i < length; i++) {
+            if (input.LA(i - length) != word.charAt(i)) {
+                return XQLexer.NCName;
+            }
+        }
+        return types[slot];
+    }
+
+    /**
+     * Tells the keyword a token is named after. Keyword rules are named
+     * after their keywords in upper case with underscores for hyphens, the
+     * only names of other tokens in upper case are those of white space.
+     * LexerTest checks that each keyword rule matches its keyword.
+     *
+     * @param tokenName name of the token
+     * @return the keyword or null if the token is not a keyword
+     */
+    static String keyword(String tokenName)
+    {
+        if (!tokenName.matches("[A-Z_]+") || tokenName.equals("S")
+                || tokenName.equals("VS")) {
+            return null;
+        }
+        if (tokenName.equals("NAN")) {
+            return "NaN";
+        }
+        return tokenName.toLowerCase().replace('_', '-');
+    }
+
+    private static void add(String keyword, int type)
+    {
+        keywords.add(keyword);
+        codes.add(type);
+        minLength = Math.min(minLength, keyword.length());
+        maxLength = Math.max(maxLength, keyword.length());
+    }
+
+    // Places buckets with most keywords first, each one with the smallest
+    // displacement that finds free slots for all of its keywords.
+    private static void build()
+    {
+        List<List<Integer>> buckets = new ArrayList<List<Integer>>();
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets.add(new ArrayList<Integer>());
+        }
+        for (int k = 0; k < keywords.size(); k++) {
+            // Same hash code as computed by type().
+            int hash = keywords.get(k).hashCode();
+            buckets.get(hash & (BUCKETS - 1)).add(k);
+        }
+        boolean[] used = new boolean[TABLE_SIZE];
+        for (int size = maxBucketSize(buckets); size > 0; size--) {
+            for (int b = 0; b < BUCKETS; b++) {
+                if (buckets.get(b).size() == size) {
+                    displace[b] = place(buckets.get(b), used);
+                }
+            }
+        }
+        keywords = null;
+        codes = null;
+    }
+
+    private static int place(List<Integer> bucket, boolean[] used)
+    {
+        int[] slots = new int[bucket.size()];
+        for (int d = 0;; d++) {
+            boolean free = true;
+            for (int i = 0; i < slots.length && free; i++) {
+                slots[i] = slot(keywords.get(bucket.get(i)).hashCode(), d);
+                free = !used[slots[i]];
+                for (int j = 0; j < i && free; j++) {
+                    free = slots[j] != slots[i];
+                }
+            }
+            if (free) {
+                for (int i = 0; i < slots.length; i++) {
+                    used[slots[i]] = true;
+                    words[slots[i]] = keywords.get(bucket.get(i));
+                    types[slots[i]] = codes.get(bucket.get(i));
+                }
+                return d;
+            }
+        }
+    }
+
+    private static int maxBucketSize(List<List<Integer>> buckets)
+    {
+        int max = 0;
+        for (List<Integer> bucket : buckets) {
+            max = Math.max(max, bucket.size());
+        }
+        return max;
+    }
+
+    private static int slot(int hash, int displacement)
+    {
+        return ((hash + displacement) * 0x9E3779B9) >>> (32 - TABLE_BITS);
+    }
+}
@@ -39,7 +39,16 @@ public abstract class Lexer
     extends org.antlr.runtime.Lexer
 {
 
-    private boolean breakOnError = true;
+    private boolean breakOnError  = true;
+    private boolean reuseTokens   = false;
+    private boolean skipHidden    = false;
+    private boolean lazyPositions = false;
+    // Whether hidden input was skipped since last token.
+    private boolean spaceBefore   = false;
+    private XQToken token;
+    // Parser which receives error messages instead of them being printed,
+    // if any.
+    private Parser  owner;
 
     public Lexer()
     {
@@ -78,6 +87,241 @@ public abstract class Lexer
         return breakOnError;
     }
 
+    /**
+     * Prepares the lexer for reuse from current position of its character
+     * stream. Unlike reset() the stream is not rewound, so that the lexer
+     * can take over from another one lexing the same stream. Lexers which
+     * keep state of their own must override this method to reset it too.
+     */
+    protected void restart()
+    {
+        state.token = null;
+        state.type = Token.INVALID_TOKEN_TYPE;
+        state.channel = Token.DEFAULT_CHANNEL;
+        state.tokenStartCharIndex = -1;
+        state.tokenStartCharPositionInLine = -1;
+        state.tokenStartLine = -1;
+        state.text = null;
+        state.failed = false;
+        state.errorRecovery = false;
+        state.lastErrorIndex = -1;
+        state.backtracking = 0;
+        spaceBefore = false;
+    }
+
+    /**
+     * Overriden in order to reset state of this class and of subclasses
+     * too - see {@link #restart()}. Settings such as
+     * {@link #setBreakOnError(boolean)} are kept.
+     */
+    @Override
+    public void reset()
+    {
+        super.reset();
+        restart();
+    }
+
+    /**
+     * Set a flag which determines whether white space and comments are
+     * returned as tokens on the hidden channel or skipped without creating
+     * tokens at all. If they are skipped, the fact is recorded in
+     * {@link XQToken#spaceBefore} of the next token. {@link XQTokenStream}
+     * sets the flag on its lexers, because it drops hidden tokens anyway.
+     * Default value is "false".
+     * 
+     * @param skipHidden the value to be set
+     */
+    public void setSkipHidden(boolean skipHidden)
+    {
+        this.skipHidden = skipHidden;
+    }
+
+    /**
+     * Retrieves the value of the flag which determines whether hidden
+     * input is skipped.
+     * 
+     * @return value of the flag
+     */
+    public boolean getSkipHidden()
+    {
+        return skipHidden;
+    }
+
+    /**
+     * Set a flag which determines whether line and position in line are
+     * stored in each token or computed from its start index when asked for.
+     * Only honoured for subclasses of {@link AbstractCharStream}, which
+     * keep an index of line starts. Default value is "false".
+     * 
+     * @param lazyPositions the value to be set
+     */
+    public void setLazyPositions(boolean lazyPositions)
+    {
+        this.lazyPositions = lazyPositions;
+    }
+
+    /**
+     * Retrieves the value of the flag which determines whether positions
+     * of tokens are computed on demand.
+     * 
+     * @return value of the flag
+     */
+    public boolean getLazyPositions()
+    {
+        return lazyPositions;
+    }
+
+    /**
+     * Called by generated lexers after recognition of white space or a
+     * comment. Skips it if so requested by {@link #setSkipHidden(boolean)}.
+     */
+    protected void skipHidden()
+    {
+        if (skipHidden) {
+            skip();
+            spaceBefore = true;
+        }
+    }
+
+    /**
+     * Called by generated lexers after the first character of a name.
+     * Consumes the rest of the name, looking characters up in
+     * {@link NameChars} rather than matching fragment NCNameChar.
+     */
+    protected void matchNCNameChars()
+    {
+        while (NameChars.isNCNameChar(input.LA(1))) {
+            input.consume();
+        }
+    }
+
+    /**
+     * Called by generated lexers after a name. Tells keywords from other
+     * names.
+     *
+     * @return type of the keyword token if the name is a keyword or the
+     *         NCName token type otherwise - see {@link Keywords}
+     */
+    protected int keywordType()
+    {
+        return Keywords.type(input, getCharIndex()
+                - state.tokenStartCharIndex);
+    }
+
+    /**
+     * Called by generated lexers within a string literal. Consumes its
+     * characters up to the closing quote, to an entity or character reference
+     * or to the end of input, whichever comes first. Doubled quotes are
+     * escapes and are consumed.
+     * 
+     * @param quote the quote which delimits the literal
+     */
+    protected void matchStringChars(char quote)
+    {
+        for (;;) {
+            int c = consumeUntil(quote, '&');
+            if (c != quote || input.LA(2) != quote) {
+                return;
+            }
+            input.consume();
+            input.consume();
+        }
+    }
+
+    /**
+     * Called by generated lexers after "(:" of a comment. Consumes the
+     * comment, nested comments included, up to its closing ":)" or to the
+     * end of input, where the lexer then reports the missing terminator.
+     */
+    protected void matchCommentChars()
+    {
+        int depth = 0;
+        for (;;) {
+            int c = consumeUntil('(', ':');
+            int next = input.LA(2);
+            if (c == CharStream.EOF || next == CharStream.EOF) {
+                return;
+            }
+            if (c == '(' && next == ':') {
+                depth++;
+                input.consume();
+            }
+            else if (c == ':' && next == ')') {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+                input.consume();
+            }
+            input.consume();
+        }
+    }
+
+    /**
+     * Called by generated lexers within a construct which ends with
+     * specified terminator, like "--&gt;" of a comment. Consumes characters
+     * up to the first occurrence of the terminator or to the end of input.
+     * 
+     * @param terminator the string which ends the construct
+     */
+    protected void matchCharsUntil(String terminator)
+    {
+        char first = terminator.charAt(0);
+        for (;;) {
+            int c = consumeUntil(first, first);
+            if (c == CharStream.EOF || atTerminator(terminator)) {
+                return;
+            }
+            input.consume();
+        }
+    }
+
+    // Fast path of streams in this package or a loop over any other one.
+    private int consumeUntil(char c1, char c2)
+    {
+        if (input instanceof AbstractCharStream) {
+            return ((AbstractCharStream) input).consumeUntil(c1, c2);
+        }
+        for (;;) {
+            int c = input.LA(1);
+            if (c == c1 || c == c2 || c == CharStream.EOF) {
+                return c;
+            }
+            input.consume();
+        }
+    }
+
+    // Whether the input continues with the terminator or with a part of it
+    // followed by end of input. The generated rules stopped in the latter
+    // case too and reported the missing rest of the terminator.
+    private boolean atTerminator(String terminator)
+    {
+        for (int i = 0; i < terminator.length(); i++) {
+            int c = input.LA(i + 1);
+            if (c == CharStream.EOF) {
+                return true;
+            }
+            if (c != terminator.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set a flag which allows the lexer to return the same token instance
+     * over and over again, reinitialized for each token. Only safe when the
+     * consumer copies what it needs from a token before asking for the next
+     * one, as {@link XQTokenStream} does in compact mode. Default value is
+     * "false".
+     * 
+     * @param reuseTokens the value to be set
+     */
+    void setReuseTokens(boolean reuseTokens)
+    {
+        this.reuseTokens = reuseTokens;
+    }
+
     /**
      * Overrides the method in the base class and produces {@link XQToken}
      * instead of CommonTokem.
@@ -85,23 +329,63 @@ public abstract class Lexer
     @Override
     public Token emit()
     {
-        Token t =
-            new XQToken(input, state.type, state.channel,
-                        state.tokenStartCharIndex, getCharIndex() - 1);
-        t.setLine(state.tokenStartLine);
-        t.setText(state.text);
-        t.setCharPositionInLine(state.tokenStartCharPositionInLine);
+        XQToken t = reuseTokens ? token : null;
+        if (t == null) {
+            t =
+                new XQToken(input, state.type, state.channel,
+                            state.tokenStartCharIndex, getCharIndex() - 1);
+            if (reuseTokens) {
+                token = t;
+            }
+        }
+        else {
+            t.set(input, state.type, state.channel,
+                  state.tokenStartCharIndex, getCharIndex() - 1);
+        }
+        if (lazyPositions && input instanceof AbstractCharStream) {
+            t.setLine(0);
+            t.setCharPositionInLine(-1);
+        }
+        else {
+            t.setLine(state.tokenStartLine);
+            t.setCharPositionInLine(state.tokenStartCharPositionInLine);
+        }
+        // Text is only set by rules which replace that of the input. A new
+        // or reinitialized token has none.
+        if (state.text != null) {
+            t.setText(state.text);
+        }
+        t.spaceBefore = spaceBefore;
+        spaceBefore = false;
         emit(t);
         return t;
     }
 
+    /**
+     * Sets the parser to which error messages are passed - see
+     * {@link Parser#emitErrorMessage(String)}. Parsers set themselves on
+     * the lexers they create.
+     * 
+     * @param owner the parser or null if messages are to be printed
+     */
+    void setOwner(Parser owner)
+    {
+        this.owner = owner;
+    }
+
     /**
      * A placeholder for implementation of custom error message handling.
+     * Passes messages to the parser set by {@link #setOwner(Parser)}, if any.
      */
     @Override
     public void emitErrorMessage(String message)
     {
-        super.emitErrorMessage(message);
+        if (owner != null) {
+            owner.emitErrorMessage(message);
+        }
+        else {
+            super.emitErrorMessage(message);
+        }
     }
 
     /**
@@ -131,38 +415,33 @@ public abstract class Lexer
     }
 
     /**
-     * Check whether a recognizer character reference references a valid Char.
-     * Throws an error if this is not the case.
+     * Check whether a recognized character reference references a valid
+     * Char. Throws an error if this is not the case. The reference is read
+     * back from the character stream, where it ends with the ';' just
+     * matched, so that no text is created unless there is an error.
      * 
      * @throws RecognitionException
      */
     protected void checkCharRef()
         throws RecognitionException
     {
-        String ref = getText();
-        int length = ref.length();
-        int start = 0;
-        for (int i = length - 1; i >= 0; i--) {
-            if (ref.charAt(i) == '&') {
-                start = i;
-                break;
-            }
+        // "&#" Digits ";" or "&#x" HexDigits ";" - other text of the token,
+        // as in a string literal, may precede it.
+        int length = 4;
+        while (input.LA(-length) != '&') {
+            length++;
         }
-        boolean isHex = ref.charAt(start + 2) == 'x';
+        boolean isHex = input.LA(-length + 2) == 'x';
         int value = 0;
-        try {
-            if (isHex) {
-                value =
-                    Integer.parseInt(ref.substring(start + 3, length - 1), 16);
-            }
-            else {
-                value = Integer.parseInt(ref.substring(start + 2, length - 1));
+        for (int i = -length + (isHex ? 3 : 2); i < -1; i++) {
+            int c = input.LA(i);
+            int digit = c <= '9' ? c - '0' : (c | 0x20) - 'a' + 10;
+            value = value * (isHex ? 16 : 10) + digit;
+            if (value > 1114111) {
+                // Invalid anyway - stop before the value overflows.
+                break;
             }
         }
-        catch (RuntimeException e) {
-            raiseError("Invalid character constant '"
-                    + ref.substring(start - 2) + ".'");
-        }
 
         if ((value == '\n') || (value == '\r') || (value == '\t')
                 || (value >= '\u0020') && (value <= '\uD7FF')
@@ -173,8 +452,11 @@ public abstract class Lexer
             // OK
         }
         else {
-            raiseError("Invalid character constant '" + ref.substring(start)
-                    + ".'");
+            // All characters of the reference are ASCII, so this holds
+            // for byte offsets of MappedFileStream too.
+            int stop = input.index() - 1;
+            raiseError("Invalid character constant '"
+                    + input.substring(stop - length + 1, stop) + ".'");
         }
     }
 }
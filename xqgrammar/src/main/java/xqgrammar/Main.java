@@ -17,70 +17,834 @@
 =============================================================================*/
 package xqgrammar;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.antlr.runtime.ANTLRFileStream;
-import org.antlr.runtime.TokenStream;
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.RecognitionException;
 
 /**
- * A simple driver program for the XQuery parser.
+ * A simple driver program for the XQuery parser. Directories given are
+ * scanned recursively for XQuery files. Files can be parsed on several
+ * threads, each of which resets a parser of its own for each file. Results
+ * are printed in the order of the files all the same and can also be
+ * summarized in JSON. With a cache file only files changed since the last
+ * run are parsed - see {@link MappedParseCache}.
+ * <p>
+ * As a daemon the program parses queries sent to its standard input, so
+ * that tools can keep it running rather than pay for starting the JVM and
+ * warming up the parser for each query.
+ * <p>
+ * In corpus mode the program replays a log of queries, such as one taken
+ * from production, reporting the result of each query and the throughput.
  */
 public class Main
 {
+    // Extensions of the files parsed when a directory is given.
+    private static final String[]              EXTENSIONS =
+        { ".xq", ".xql", ".xqm", ".xqy", ".xquery" };
+    private static final int                   FILE       = 0;
+    private static final int                   MAPPED     = 1;
+    private static final int                   STREAMED   = 2;
+    // Default maximum length of a query sent to the daemon in kilobytes.
+    private static final int                   MAX_QUERY  = 16 * 1024;
+    // Header lines of daemon requests longer than that are invalid.
+    private static final int                   MAX_HEADER = 64 * 1024;
+    // Parser of the current thread, reset for each file.
+    private static final ThreadLocal<XQParser> parsers    =
+        new ThreadLocal<XQParser>();
+
     public static void main(String[] arg)
     {
-        if (arg.length == 0) {
-            System.out.println("Usage : java -jar xqgrammar file ...");
+        int mode = FILE;
+        int numThreads = 1;
+        String jsonFileName = null;
+        boolean daemon = false;
+        String logName = null;
+        int cacheSize = 0;
+        String cacheFileName = null;
+        int maxQuery = MAX_QUERY;
+        int first = 0;
+        for (; first < arg.length && arg[first].startsWith("-"); first++) {
+            if (arg[first].equals("-mmap")) {
+                mode = MAPPED;
+            }
+            else if (arg[first].equals("-stream")) {
+                mode = STREAMED;
+            }
+            else if (arg[first].equals("-threads") && first + 1 < arg.length) {
+                try {
+                    numThreads = Integer.parseInt(arg[++first]);
+                }
+                catch (NumberFormatException e) {
+                    numThreads = 0;
+                }
+                if (numThreads < 1) {
+                    System.out.println("Invalid number of threads : "
+                            + arg[first]);
+                    usage();
+                    return;
+                }
+            }
+            else if (arg[first].equals("-json") && first + 1 < arg.length) {
+                jsonFileName = arg[++first];
+            }
+            else if (arg[first].equals("-daemon")) {
+                daemon = true;
+            }
+            else if (arg[first].equals("-maxquery")
+                    && first + 1 < arg.length) {
+                try {
+                    maxQuery = Integer.parseInt(arg[++first]);
+                }
+                catch (NumberFormatException e) {
+                    maxQuery = 0;
+                }
+                if (maxQuery < 1 || maxQuery > Integer.MAX_VALUE / 1024) {
+                    System.out.println("Invalid maximum query length : "
+                            + arg[first]);
+                    usage();
+                    return;
+                }
+            }
+            else if (arg[first].equals("-corpus") && first + 1 < arg.length) {
+                logName = arg[++first];
+            }
+            else if (arg[first].equals("-cachefile")
+                    && first + 1 < arg.length) {
+                cacheFileName = arg[++first];
+            }
+            else if (arg[first].equals("-cache") && first + 1 < arg.length) {
+                try {
+                    cacheSize = Integer.parseInt(arg[++first]);
+                }
+                catch (NumberFormatException e) {
+                    cacheSize = 0;
+                }
+                if (cacheSize < 1) {
+                    System.out.println("Invalid cache size : " + arg[first]);
+                    usage();
+                    return;
+                }
+            }
+            else {
+                System.out.println("Unknown option : " + arg[first]);
+                usage();
+                return;
+            }
         }
-        else {
-            for (String fileName : arg) {
-                if (!(new File(fileName).exists())) {
-                    System.out.println(fileName);
-                    System.out.println("\t" + fileName
-                            + ": Error - file not found");
+        if (daemon && arg.length == first) {
+            try {
+                serve(System.in, System.out, mode, 1024 * maxQuery);
+            }
+            catch (IOException e) {
+                System.err.println("Error - " + e);
+            }
+            return;
+        }
+        if (logName != null && !daemon && arg.length == first) {
+            try {
+                replay(logName, numThreads, cacheSize, jsonFileName);
+            }
+            catch (IOException e) {
+                System.err.println(logName + ": Error - " + e.getMessage());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (daemon || logName != null || arg.length == first) {
+            usage();
+            return;
+        }
+        List<File> files = new ArrayList<File>();
+        for (int i = first; i < arg.length; i++) {
+            File file = new File(arg[i]);
+            if (file.isDirectory()) {
+                scan(file, files);
+            }
+            else {
+                files.add(file);
+            }
+        }
+        MappedParseCache store = null;
+        if (cacheFileName != null) {
+            try {
+                store = MappedParseCache.open(new File(cacheFileName));
+            }
+            catch (IOException e) {
+                System.out.println(cacheFileName + ": Error - " + e);
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        List<Result> results = run(files, mode, numThreads, store);
+        long time = System.nanoTime() - start;
+        if (store != null) {
+            try {
+                store.save();
+            }
+            catch (IOException e) {
+                System.out.println(cacheFileName + ": Error - " + e);
+            }
+        }
+        if (jsonFileName != null) {
+            try {
+                writeJson(jsonFileName, results, numThreads, time);
+            }
+            catch (IOException e) {
+                System.out.println(jsonFileName + ": Error - " + e);
+            }
+        }
+    }
+
+    private static void usage()
+    {
+        System.out.println("Usage : java -jar xqgrammar [-mmap | -stream] "
+                + "[-threads n] [-json file]");
+        System.out.println("                             [-cachefile file] "
+                + "file|directory ...");
+        System.out.println("        java -jar xqgrammar [-mmap | -stream] "
+                + "[-maxquery kb] -daemon");
+        System.out.println("        java -jar xqgrammar [-threads n] "
+                + "[-cache mb] [-json file] -corpus log");
+        System.out.println("        -mmap     : memory map files and lex them "
+                + "as UTF-8 bytes");
+        System.out.println("        -stream   : decode files while lexing, "
+                + "honouring byte order mark and encoding declaration");
+        System.out.println("        -threads  : number of files parsed at a "
+                + "time, 1 by default");
+        System.out.println("        -json     : write a summary of the "
+                + "results to file");
+        System.out.println("        -cachefile: keep results in file and "
+                + "parse only files changed since");
+        System.out.println("        -daemon   : parse requests read from "
+                + "standard input, see below");
+        System.out.println("        -maxquery : longest query the daemon "
+                + "parses in kilobytes, " + MAX_QUERY + " by default");
+        System.out.println("        -corpus   : parse the queries of a log, "
+                + "one per line as JSON string, JSON");
+        System.out.println("                    object with member \"query\" "
+                + "or escaped text, \"-\" for standard input");
+        System.out.println("        -cache    : cache results of queries "
+                + "of the log in up to mb megabytes");
+        System.out.println("        Directories are scanned recursively for "
+                + "files with extensions " + Arrays.toString(EXTENSIONS));
+        System.out.println("        Requests of daemon are lines "
+                + "\"PARSE length name\" followed by length bytes of");
+        System.out.println("        UTF-8 query or \"FILE path\". Each "
+                + "gets a line \"errors length\" in response, followed");
+        System.out.println("        by length bytes of UTF-8 error lines "
+                + "in the format of the other modes.");
+        System.out.println("        Longer queries are skipped and "
+                + "answered with an error.");
+    }
+
+    // Adds the XQuery files in a directory and its subdirectories, sorted
+    // by name so that the order does not depend on the file system.
+    private static void scan(File directory, List<File> files)
+    {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries);
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                scan(entry, files);
+            }
+            else if (isXQueryFile(entry.getName())) {
+                files.add(entry);
+            }
+        }
+    }
+
+    private static boolean isXQueryFile(String name)
+    {
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Parses the files and prints the results in the order of the files,
+    // each as soon as it and those before it are done.
+    private static List<Result> run(List<File> files, final int mode,
+                                    int numThreads,
+                                    final MappedParseCache store)
+    {
+        List<Result> results = new ArrayList<Result>();
+        ExecutorService executor = null;
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        if (numThreads > 1) {
+            executor = Executors.newFixedThreadPool(numThreads);
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call()
+                    {
+                        return parse(file, mode, store);
+                    }
+                }));
+            }
+        }
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Result result =
+                    executor == null ? parse(files.get(i), mode, store)
+                            : futures.get(i).get();
+                print(result);
+                results.add(result);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return results;
+    }
+
+    // Parses the queries of a log and writes a line of JSON with the result
+    // of each to standard output, in order of the queries. Results not yet
+    // written are at most as many as the capacity of the service, so that
+    // memory use does not depend on length of the log.
+    private static void replay(String logName, int numThreads,
+                               int cacheSize, String jsonFileName)
+        throws IOException, InterruptedException
+    {
+        InputStream in =
+            logName.equals("-") ? System.in : new FileInputStream(logName);
+        QueryLog log = new QueryLog(new InputStreamReader(in, "UTF-8"));
+        Writer out =
+            new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        ParseService service = new ParseService(numThreads, 4 * numThreads);
+        ParseCache cache = null;
+        if (cacheSize > 0) {
+            cache = new ParseCache(cacheSize * 1024L * 1024L);
+            service.setCache(cache);
+        }
+        Dialect dialect = Parser.getDefaultDialect();
+        Queue<Future<ParseResult>> pending =
+            new ArrayDeque<Future<ParseResult>>();
+        Queue<Integer> lineNumbers = new ArrayDeque<Integer>();
+        Totals totals = new Totals();
+        long start = System.nanoTime();
+        try {
+            String query;
+            while ((query = log.next()) != null) {
+                if (pending.size() == service.getCapacity()) {
+                    write(out, lineNumbers.remove(), pending.remove(), totals);
+                }
+                pending.add(service.submit(query, dialect));
+                lineNumbers.add(log.getLineNumber());
+            }
+            while (!pending.isEmpty()) {
+                write(out, lineNumbers.remove(), pending.remove(), totals);
+            }
+            out.flush();
+        }
+        finally {
+            service.shutdown();
+            in.close();
+        }
+        long time = System.nanoTime() - start;
+        long rate = time > 0 ? totals.numQueries * 1000000000L / time : 0;
+        System.err.println(totals.numQueries + " queries, " + totals.numValid
+                + " valid, " + millis(time) + " ms, " + rate + " queries/s");
+        if (cache != null) {
+            System.err.println("Cache: " + cache);
+        }
+        if (jsonFileName != null) {
+            Writer json =
+                new OutputStreamWriter(new FileOutputStream(jsonFileName),
+                                       "UTF-8");
+            try {
+                json.write("{\n");
+                json.write("  \"queries\": " + totals.numQueries + ",\n");
+                json.write("  \"valid\": " + totals.numValid + ",\n");
+                json.write("  \"tokens\": " + totals.numTokens + ",\n");
+                json.write("  \"threads\": " + numThreads + ",\n");
+                json.write("  \"timeMs\": " + millis(time) + ",\n");
+                json.write("  \"parseMs\": " + millis(totals.parseTime)
+                        + ",\n");
+                if (cache != null) {
+                    json.write("  \"cacheHits\": " + cache.getHitCount()
+                            + ",\n");
+                    json.write("  \"cacheMisses\": " + cache.getMissCount()
+                            + ",\n");
+                }
+                json.write("  \"queriesPerSecond\": " + rate + "\n");
+                json.write("}\n");
+            }
+            finally {
+                json.close();
+            }
+        }
+    }
+
+    private static void write(Writer out, int lineNumber,
+                              Future<ParseResult> future, Totals totals)
+        throws IOException, InterruptedException
+    {
+        ParseResult result;
+        try {
+            result = future.get();
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        totals.numQueries++;
+        totals.numValid += result.isValid() ? 1 : 0;
+        totals.numTokens += result.getNumTokens();
+        totals.parseTime += result.getParseTime();
+        out.write("{ \"line\": " + lineNumber + ", \"valid\": "
+                + result.isValid() + ", \"tokens\": " + result.getNumTokens()
+                + ", \"parseMs\": " + millis(result.getParseTime())
+                + ", \"errors\": [");
+        List<String> errors = result.getErrors();
+        for (int i = 0; i < errors.size(); i++) {
+            out.write((i == 0 ? "" : ", ") + quote(errors.get(i)));
+        }
+        out.write("] }\n");
+    }
+
+    // Answers requests until end of input. Requests and responses are a
+    // header line which gives the length of the bytes which follow it, if
+    // any - see usage(). The input and the output stay in step even when
+    // the query is not valid UTF-8. Queries longer than the maximum are
+    // skipped unread, so that a client can not make the daemon run out of
+    // memory. Invalid requests end the session with an error, as what
+    // follows them cannot be told apart.
+    private static void serve(InputStream in, OutputStream out, int mode,
+                              int maxQuery)
+        throws IOException
+    {
+        InputStream input = new BufferedInputStream(in);
+        OutputStream output = new BufferedOutputStream(out);
+        for (;;) {
+            String header = readLine(input, MAX_HEADER);
+            if (header == null) {
+                return;
+            }
+            Result result;
+            if (header.startsWith("FILE ")) {
+                result = parse(new File(header.substring(5)), mode, null);
+            }
+            else if (header.startsWith("PARSE ")) {
+                int space = header.indexOf(' ', 6);
+                int length = -1;
+                try {
+                    length =
+                        Integer.parseInt(space < 0 ? header.substring(6)
+                                : header.substring(6, space));
+                }
+                catch (NumberFormatException e) {
+                }
+                if (length < 0) {
+                    respond(output, invalid(header));
+                    return;
+                }
+                String name = space < 0 ? "" : header.substring(space + 1);
+                if (length > maxQuery) {
+                    skipFully(input, length);
+                    result = new Result(name);
+                    result.errors.add("Query of " + length + " bytes is "
+                            + "longer than the maximum of " + maxQuery + ".");
+                    respond(output, result);
+                    continue;
+                }
+                byte[] query = new byte[length];
+                new DataInputStream(input).readFully(query);
+                result = new Result(name);
+                parse(new CharSequenceStream(new String(query, "UTF-8"), name),
+                      result);
+            }
+            else {
+                respond(output, invalid(header));
+                return;
+            }
+            respond(output, result);
+        }
+    }
+
+    private static Result invalid(String header)
+    {
+        Result result = new Result("");
+        result.errors.add("Invalid request : " + header);
+        return result;
+    }
+
+    private static void respond(OutputStream output, Result result)
+        throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        if (!result.found) {
+            sb.append(errorLine(result.fileName, "file not found"))
+                .append('\n');
+        }
+        for (String message : result.errors) {
+            sb.append(errorLine(result.fileName, message)).append('\n');
+        }
+        byte[] body = sb.toString().getBytes("UTF-8");
+        output.write((result.getNumErrors() + " " + body.length + "\n")
+            .getBytes("UTF-8"));
+        output.write(body);
+        output.flush();
+    }
+
+    // Reads a line ended by LF, or by CR LF, or null at end of input. Only
+    // the first maxLength bytes of a longer line are kept.
+    private static String readLine(InputStream input, int maxLength)
+        throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = input.read();
+        if (b < 0) {
+            return null;
+        }
+        while (b >= 0 && b != '\n') {
+            if (line.size() < maxLength) {
+                line.write(b);
+            }
+            b = input.read();
+        }
+        String s = line.toString("UTF-8");
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private static void skipFully(InputStream input, long length)
+        throws IOException
+    {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                // skip() may return 0 before the end of input too.
+                if (input.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    // Parses a file unless its result is in the store, if one is given.
+    private static Result parse(File file, int mode, MappedParseCache store)
+    {
+        Result result = new Result(file.getPath());
+        if (!file.exists()) {
+            result.found = false;
+            return result;
+        }
+        FileInputStream in = null;
+        try {
+            long start = System.nanoTime();
+            ParseCache.Key key = null;
+            CharStream input;
+            if (store != null) {
+                // The file is read once, for both the key and the parser.
+                ByteBuffer bytes =
+                    mode == MAPPED ? MappedFileStream.map(file.getPath())
+                            : ByteBuffer.wrap(readFully(file));
+                key = key(file, mode, bytes);
+                ParseResult cached = store.get(key);
+                if (cached != null) {
+                    result.errors.addAll(cached.getErrors());
+                    result.numTokens = cached.getNumTokens();
+                    result.cached = true;
+                    result.readTime = System.nanoTime() - start;
+                    return result;
+                }
+                if (mode == MAPPED) {
+                    input = new MappedFileStream(bytes, file.getPath());
+                }
+                else if (mode == STREAMED) {
+                    input = new ByteChannelStream(new ByteArrayInputStream(
+                        bytes.array()), file.getPath());
                 }
                 else {
-                    try {
-                        System.out.println(fileName);
-                        ANTLRFileStream input = new ANTLRFileStream(fileName);
-                        XQLexer lexer = new XQLexer(input);
-                        XQTokenStream tokenStream = new XQTokenStream(lexer);
-                        MyParser parser = new MyParser(tokenStream);
-                        parser.setBreakOnError(false);
-                        parser.setFileName(fileName);
-                        parser.module();
-                    }
-                    catch (Exception e) {
-                    }
+                    // Decoded as by ANTLRFileStream.
+                    input = new CharSequenceStream(new String(bytes.array()),
+                                                   file.getPath());
                 }
             }
+            else if (mode == MAPPED) {
+                input = new MappedFileStream(file.getPath());
+            }
+            else if (mode == STREAMED) {
+                in = new FileInputStream(file);
+                input = new ByteChannelStream(in, file.getPath());
+            }
+            else {
+                input = new ANTLRFileStream(file.getPath());
+            }
+            result.readTime = System.nanoTime() - start;
+            parse(input, result);
+            if (key != null) {
+                store.put(key, new ParseResult(Parser.getDefaultDialect(),
+                                               new ArrayList<String>(
+                                                   result.errors),
+                                               result.numTokens,
+                                               result.parseTime));
+            }
         }
+        catch (IOException e) {
+            result.errors.add(e.toString());
+        }
+        finally {
+            close(in);
+        }
+        return result;
     }
 
-    private static class MyParser
-        extends XQParser
+    // Key of the result of a file - the digest of its path and content and
+    // the mode, since messages hold the path and decoding depends on the
+    // mode.
+    private static ParseCache.Key key(File file, int mode, ByteBuffer bytes)
+        throws IOException
     {
-        private String fileName;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update((byte) mode);
+        digest.update(file.getPath().getBytes("UTF-8"));
+        digest.update((byte) 0);
+        digest.update(bytes.duplicate());
+        return new ParseCache.Key(digest.digest(), Parser.getDefaultDialect());
+    }
 
-        public MyParser(TokenStream input)
-        {
-            super(input);
+    private static byte[] readFully(File file)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large.");
+            }
+            byte[] bytes = new byte[(int) length];
+            new DataInputStream(in).readFully(bytes);
+            return bytes;
+        }
+        finally {
+            in.close();
         }
+    }
 
-        public String getFileName()
-        {
-            return fileName;
+    // Parses input with the parser of the current thread.
+    private static void parse(CharStream input, Result result)
+    {
+        long start = System.nanoTime();
+        XQParser parser = parsers.get();
+        if (parser == null) {
+            XQLexer lexer = new XQLexer(input);
+            parser = new XQParser(new XQTokenStream(lexer, true, true));
+            parser.setBreakOnError(false);
+            lexer.setOwner(parser);
+            parsers.set(parser);
         }
+        else {
+            parser.reset(input);
+        }
+        parser.setErrorMessages(result.errors);
+        try {
+            parser.module();
+        }
+        catch (RuntimeException e) {
+            // Lexers break on error, after reporting it.
+            if (result.errors.isEmpty()) {
+                result.errors.add(String.valueOf(e.getMessage()));
+            }
+        }
+        catch (RecognitionException e) {
+            result.errors.add(e.toString());
+        }
+        finally {
+            parser.setErrorMessages(null);
+        }
+        result.parseTime = System.nanoTime() - start;
+        result.numTokens = parser.getTokenStream().size();
+    }
+
+    private static void print(Result result)
+    {
+        System.out.println(result.fileName);
+        if (!result.found) {
+            System.out.println(errorLine(result.fileName, "file not found"));
+        }
+        for (String message : result.errors) {
+            System.err.println(errorLine(result.fileName, message));
+        }
+    }
+
+    private static String errorLine(String fileName, String message)
+    {
+        return "\t" + fileName + ": Error - " + message;
+    }
+
+    private static void writeJson(String fileName, List<Result> results,
+                                  int numThreads, long time)
+        throws IOException
+    {
+        int numValid = 0;
+        int numErrors = 0;
+        long numTokens = 0;
+        int numCached = 0;
+        for (Result result : results) {
+            numValid += result.isValid() ? 1 : 0;
+            numCached += result.cached ? 1 : 0;
+            numErrors += result.getNumErrors();
+            numTokens += result.numTokens;
+        }
+        Writer out =
+            new OutputStreamWriter(new FileOutputStream(fileName), "UTF-8");
+        try {
+            out.write("{\n");
+            out.write("  \"files\": " + results.size() + ",\n");
+            out.write("  \"valid\": " + numValid + ",\n");
+            out.write("  \"errors\": " + numErrors + ",\n");
+            out.write("  \"tokens\": " + numTokens + ",\n");
+            out.write("  \"cached\": " + numCached + ",\n");
+            out.write("  \"threads\": " + numThreads + ",\n");
+            out.write("  \"timeMs\": " + millis(time) + ",\n");
+            out.write("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    { \"file\": " + quote(result.fileName)
+                        + ", \"found\": " + result.found
+                        + ", \"cached\": " + result.cached
+                        + ", \"readMs\": " + millis(result.readTime)
+                        + ", \"parseMs\": " + millis(result.parseTime)
+                        + ", \"tokens\": " + result.numTokens
+                        + ", \"errors\": " + result.getNumErrors()
+                        + ", \"messages\": [");
+                for (int j = 0; j < result.errors.size(); j++) {
+                    out.write((j == 0 ? "" : ", ")
+                            + quote(result.errors.get(j)));
+                }
+                out.write("] }");
+            }
+            out.write("\n  ]\n}\n");
+        }
+        finally {
+            out.close();
+        }
+    }
 
-        public void setFileName(String fileName)
+    private static String millis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s)
+    {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void close(FileInputStream in)
+    {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    // Totals of the results of a log.
+    private static class Totals
+    {
+        private long numQueries;
+        private long numValid;
+        private long numTokens;
+        private long parseTime;
+    }
+
+    // Outcome of parsing a file. Times are in nanoseconds. Reading covers
+    // creation of the character stream, parsing covers lexing too, as
+    // tokens are lexed on demand of the parser.
+    private static class Result
+    {
+        private final String       fileName;
+        private boolean            found  = true;
+        // Whether the result was found in the cache file.
+        private boolean            cached;
+        private final List<String> errors = new ArrayList<String>();
+        private int                numTokens;
+        private long               readTime;
+        private long               parseTime;
+
+        Result(String fileName)
         {
             this.fileName = fileName;
         }
 
-        @Override
-        public void emitErrorMessage(String message)
+        int getNumErrors()
+        {
+            return errors.size() + (found ? 0 : 1);
+        }
+
+        boolean isValid()
         {
-            System.err.println("\t" + getFileName() + ": Error - " + message);
+            return getNumErrors() == 0;
         }
     }
 }
@@ -0,0 +1,330 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * Character stream which memory maps a UTF-8 encoded file and lexes its bytes
+ * directly. Nothing is decoded up front: ASCII characters are read as they
+ * are and multi-byte sequences are decoded only when the lexer actually
+ * looks at them or when text of a token is requested. A leading byte order
+ * mark is skipped. Malformed sequences read as U+FFFD.
+ * <p>
+ * Index of this stream is a byte offset in the buffer and so are start and
+ * stop offsets of the tokens produced over it. They are meant to be passed
+ * back to {@link #substring(int, int)} and not to be used as character
+ * positions. Characters outside the BMP are seen as surrogate pairs just as
+ * with the other streams: the high surrogate is at offset of the 4-byte
+ * sequence and the low surrogate at the following offset.
+ */
+public class MappedFileStream
+    extends AbstractCharStream
+{
+    private static final int REPLACEMENT_CHAR = '\uFFFD';
+
+    private final ByteBuffer bytes;
+    private final int        begin;
+    private final int        n;
+
+    /**
+     * Maps the specified file in memory.
+     *
+     * @param fileName name of the file
+     * @throws IOException if the file can not be opened or mapped
+     */
+    public MappedFileStream(String fileName)
+        throws IOException
+    {
+        this(map(fileName), fileName);
+    }
+
+    /**
+     * Creates a stream over UTF-8 encoded bytes of a buffer, starting from
+     * position and up to limit of the buffer.
+     *
+     * @param bytes      the bytes to be lexed
+     * @param sourceName name of the source to be reported in errors
+     */
+    public MappedFileStream(ByteBuffer bytes, String sourceName)
+    {
+        super(bytes.position() + bomLength(bytes), sourceName);
+        this.bytes = bytes;
+        this.begin = p;
+        this.n = bytes.limit();
+    }
+
+    /**
+     * Rewinds the stream to its beginning so that it can be parsed again.
+     */
+    public void reset()
+    {
+        reset(begin);
+    }
+
+    @Override
+    public void consume()
+    {
+        if (p < n) {
+            int b = bytes.get(p);
+            charPositionInLine++;
+            if (b == '\n') {
+                line++;
+                charPositionInLine = 0;
+                p++;
+                newLine(p);
+            }
+            else if (b >= 0) {
+                p++;
+            }
+            else {
+                p = next(p);
+            }
+        }
+    }
+
+    @Override
+    public int LA(int i)
+    {
+        if (i == 1) {
+            if (p >= n) {
+                return CharStream.EOF;
+            }
+            int b = bytes.get(p);
+            return b >= 0 ? b : decode(p);
+        }
+        if (i == 0) {
+            return 0;
+        }
+        int index = p;
+        if (i > 0) {
+            while (--i > 0) {
+                if (index >= n) {
+                    return CharStream.EOF;
+                }
+                index = next(index);
+            }
+            if (index >= n) {
+                return CharStream.EOF;
+            }
+        }
+        else {
+            while (i++ < 0) {
+                if (index <= begin) {
+                    return CharStream.EOF;
+                }
+                index = previous(index);
+            }
+        }
+        int b = bytes.get(index);
+        return b >= 0 ? b : decode(index);
+    }
+
+    @Override
+    public int size()
+    {
+        return n;
+    }
+
+    @Override
+    protected int countChars(int start, int end)
+    {
+        int count = 0;
+        for (int i = start; i < end; i = next(i)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String substring(int start, int stop)
+    {
+        int end = next(stop);
+        char[] chars = new char[end - start];
+        int count = 0;
+        for (int i = start; i < end; i = next(i)) {
+            int b = bytes.get(i);
+            chars[count++] = (char) (b >= 0 ? b : decode(i));
+        }
+        return new String(chars, 0, count);
+    }
+
+    @Override
+    public String toString()
+    {
+        return n > begin ? substring(begin, previous(n)) : "";
+    }
+
+    // Decodes the non-ASCII character at specified offset.
+    private int decode(int index)
+    {
+        int lead = bytes.get(index) & 0xFF;
+        if (lead < 0xC0) {
+            if (isLowSurrogate(index)) {
+                return lowSurrogate(codePoint(index - 1, 4));
+            }
+            return REPLACEMENT_CHAR;
+        }
+        int length = sequenceLength(lead);
+        int codePoint = codePoint(index, length);
+        if (codePoint < 0) {
+            return REPLACEMENT_CHAR;
+        }
+        if (length == 4) {
+            return highSurrogate(codePoint);
+        }
+        return codePoint;
+    }
+
+    // Offset of the character following the one at specified offset.
+    private int next(int index)
+    {
+        int b = bytes.get(index);
+        if (b >= 0) {
+            return index + 1;
+        }
+        int lead = b & 0xFF;
+        if (lead < 0xC0) {
+            return isLowSurrogate(index) ? index + 3 : index + 1;
+        }
+        int length = sequenceLength(lead);
+        if (codePoint(index, length) < 0) {
+            return index + 1;
+        }
+        return length == 4 ? index + 1 : index + length;
+    }
+
+    // Offset of the character preceding the one at specified offset.
+    private int previous(int index)
+    {
+        if (bytes.get(index - 1) >= 0) {
+            return index - 1;
+        }
+        if (isLowSurrogate(index)) {
+            return index - 1;
+        }
+        for (int length = 2; length <= 4 && index - length >= begin; length++) {
+            int lead = bytes.get(index - length) & 0xFF;
+            if (lead >= 0xC0) {
+                if (sequenceLength(lead) == length
+                        && codePoint(index - length, length) >= 0) {
+                    return length == 4 ? index - 3 : index - length;
+                }
+                break;
+            }
+        }
+        return index - 1;
+    }
+
+    // Whether offset points to second byte of a valid 4-byte sequence,
+    // which is where the low surrogate of its code point is read.
+    private boolean isLowSurrogate(int index)
+    {
+        return index - 1 >= begin
+                && sequenceLength(bytes.get(index - 1) & 0xFF) == 4
+                && codePoint(index - 1, 4) >= 0;
+    }
+
+    private static int sequenceLength(int lead)
+    {
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            return 2;
+        }
+        if (lead >= 0xE0 && lead <= 0xEF) {
+            return 3;
+        }
+        if (lead >= 0xF0 && lead <= 0xF4) {
+            return 4;
+        }
+        return 0;
+    }
+
+    // Code point of the sequence at specified offset or -1 if malformed.
+    private int codePoint(int index, int length)
+    {
+        if (length == 0 || index + length > n) {
+            return -1;
+        }
+        int codePoint = bytes.get(index) & (0xFF >> (length + 1));
+        for (int i = 1; i < length; i++) {
+            int b = bytes.get(index + i);
+            if ((b & 0xC0) != 0x80) {
+                return -1;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        switch (length) {
+        case 3:
+            if (codePoint < 0x800
+                    || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                return -1;
+            }
+            break;
+        case 4:
+            if (codePoint < 0x10000 || codePoint > 0x10FFFF) {
+                return -1;
+            }
+            break;
+        default:
+            break;
+        }
+        return codePoint;
+    }
+
+    private static int highSurrogate(int codePoint)
+    {
+        return 0xD800 + ((codePoint - 0x10000) >> 10);
+    }
+
+    private static int lowSurrogate(int codePoint)
+    {
+        return 0xDC00 + ((codePoint - 0x10000) & 0x3FF);
+    }
+
+    private static int bomLength(ByteBuffer bytes)
+    {
+        int start = bytes.position();
+        if (bytes.limit() - start >= 3
+                && (bytes.get(start) & 0xFF) == 0xEF
+                && (bytes.get(start + 1) & 0xFF) == 0xBB
+                && (bytes.get(start + 2) & 0xFF) == 0xBF) {
+            return 3;
+        }
+        return 0;
+    }
+
+    static ByteBuffer map(String fileName)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                               channel.size());
+        }
+        finally {
+            file.close();
+        }
+    }
+}
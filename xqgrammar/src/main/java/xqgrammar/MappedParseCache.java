@@ -0,0 +1,514 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache of parse results kept in a file, so that results survive restarts
+ * of the program. The file is memory mapped and entries are read in place
+ * when looked up - opening it takes the same time however many entries it
+ * has.
+ * <p>
+ * The file is written as a whole by {@link #save()} and not changed
+ * otherwise. It holds:
+ * <ol>
+ * <li> A header with the format version and the grammar version - a digest
+ *      of the classes of the parsers and lexers. A file of another format
+ *      or grammar is taken to be empty and is replaced on save.</li>
+ * <li> A hash table of slots with the digest and dialect of a key and the
+ *      position of its entry, looked up by linear probing.</li>
+ * <li> The entries - number of tokens, parse time and error messages.</li>
+ * </ol>
+ * Results added are kept in memory until saved. Entries are never removed
+ * - the file may be deleted to clear it.
+ * <p>
+ * Lookups may run in parallel with each other and with additions and saves,
+ * but wait while a save replaces the file. Several programs may save the
+ * same file at once - the last save wins.
+ *
+ * @see ParseCache#ParseCache(long, MappedParseCache)
+ */
+public final class MappedParseCache
+{
+    // "XQPC"
+    private static final int    MAGIC           = 0x58515043;
+    private static final int    FORMAT_VERSION  = 1;
+    private static final int    DIGEST_LENGTH   = 32;
+    // magic, format version, grammar version, number of slots, entries
+    private static final int    HEADER_LENGTH   = 16 + DIGEST_LENGTH;
+    // digest, dialect, position of entry - 0 in empty slots
+    private static final int    SLOT_LENGTH     = DIGEST_LENGTH + 8;
+    private static final byte[] GRAMMAR_VERSION = grammarVersion();
+
+    private final File          file;
+    // Contents of the file, empty if there is none.
+    private volatile ByteBuffer buffer;
+    // Held by lookups while they read the mapping, so that a save may
+    // unmap it - see replace().
+    private final ReadWriteLock lock            = new ReentrantReadWriteLock();
+    private final ConcurrentMap<ParseCache.Key, ParseResult> added =
+        new ConcurrentHashMap<ParseCache.Key, ParseResult>();
+
+    private MappedParseCache(File file, ByteBuffer buffer)
+    {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens the cache in a file. A missing file, or one written with
+     * another format or grammar, gives an empty cache.
+     *
+     * @param file the file
+     * @return the cache
+     * @throws IOException if the file exists and can not be mapped
+     */
+    public static MappedParseCache open(File file)
+        throws IOException
+    {
+        return new MappedParseCache(file, map(file));
+    }
+
+    /**
+     * Retrieves the result of a query if it is cached.
+     *
+     * @param query   the query
+     * @param dialect the dialect it was parsed in
+     * @return the result or null if it is not cached
+     */
+    public ParseResult get(CharSequence query, Dialect dialect)
+    {
+        return get(ParseCache.key(query, dialect));
+    }
+
+    /**
+     * Adds the result of a query unless it is already cached. The result is
+     * written to the file by the next save.
+     *
+     * @param query   the query
+     * @param dialect the dialect it was parsed in
+     * @param result  the result
+     */
+    public void put(CharSequence query, Dialect dialect, ParseResult result)
+    {
+        put(ParseCache.key(query, dialect), result);
+    }
+
+    ParseResult get(ParseCache.Key key)
+    {
+        ParseResult result = find(key);
+        return result != null ? result : added.get(key);
+    }
+
+    void put(ParseCache.Key key, ParseResult result)
+    {
+        if (find(key) == null) {
+            added.putIfAbsent(key, result);
+        }
+    }
+
+    private ParseResult find(ParseCache.Key key)
+    {
+        lock.readLock().lock();
+        try {
+            return find(buffer, key);
+        }
+        catch (IndexOutOfBoundsException e) {
+            // A damaged file.
+            return null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of entries, those not yet saved included.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        int numSaved;
+        lock.readLock().lock();
+        try {
+            ByteBuffer b = buffer;
+            numSaved = b.capacity() == 0 ? 0 : b.getInt(12 + DIGEST_LENGTH);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return numSaved + added.size();
+    }
+
+    /**
+     * Writes the entries to the file, unless none were added since it was
+     * opened or last saved. The file is written under a name of its own in
+     * the same directory and then renamed, so that it is replaced as a
+     * whole.
+     *
+     * @throws IOException if the file can not be written
+     */
+    public synchronized void save()
+        throws IOException
+    {
+        if (added.isEmpty()) {
+            return;
+        }
+        ByteBuffer old = buffer;
+        int numOld = old.capacity() == 0 ? 0 : old.getInt(12 + DIGEST_LENGTH);
+        List<ParseCache.Key> keys =
+            new ArrayList<ParseCache.Key>(added.keySet());
+        int numEntries = numOld + keys.size();
+        // At most half of the slots are used.
+        int numSlots = Integer.highestOneBit(numEntries) * 4;
+        ByteBuffer slots = ByteBuffer.allocate(numSlots * SLOT_LENGTH);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(bytes);
+        int base = HEADER_LENGTH + slots.capacity();
+        for (int i = 0; numOld > 0 && i < old.getInt(8 + DIGEST_LENGTH); i++) {
+            int slot = HEADER_LENGTH + i * SLOT_LENGTH;
+            int position = old.getInt(slot + DIGEST_LENGTH + 4);
+            if (position == 0) {
+                continue;
+            }
+            byte[] digest = new byte[DIGEST_LENGTH];
+            for (int k = 0; k < DIGEST_LENGTH; k++) {
+                digest[k] = old.get(slot + k);
+            }
+            insert(slots, digest, old.getInt(slot + DIGEST_LENGTH),
+                   base + entries.size());
+            // Copied as it is.
+            int end = skipEntry(old, position);
+            for (int k = position; k < end; k++) {
+                entries.write(old.get(k));
+            }
+        }
+        for (ParseCache.Key key : keys) {
+            insert(slots, key.getDigest(), code(key.getDialect()),
+                   base + entries.size());
+            writeEntry(entries, added.get(key));
+        }
+        entries.flush();
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        // The prefix must be at least 3 characters long.
+        File temp =
+            File.createTempFile(file.getName() + ".new", ".tmp", directory);
+        OutputStream out = new FileOutputStream(temp);
+        boolean written = false;
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.write(GRAMMAR_VERSION);
+            data.writeInt(numSlots);
+            data.writeInt(numEntries);
+            data.write(slots.array());
+            bytes.writeTo(data);
+            data.flush();
+            written = true;
+        }
+        finally {
+            out.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        replace(temp);
+        for (ParseCache.Key key : keys) {
+            added.remove(key);
+        }
+    }
+
+    // Renames a file written by save() to the file of the cache and maps
+    // it. Some platforms neither rename over an existing file nor delete a
+    // file which is mapped, so the old mapping is dropped at once then,
+    // rather than when it is collected. Lookups are kept waiting meanwhile.
+    private void replace(File temp)
+        throws IOException
+    {
+        lock.writeLock().lock();
+        try {
+            if (!temp.renameTo(file)) {
+                ByteBuffer old = buffer;
+                buffer = ByteBuffer.allocate(0);
+                unmap(old);
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    buffer = map(file);
+                    throw new IOException("Can not rename " + temp + " to "
+                            + file + ".");
+                }
+            }
+            buffer = map(file);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Releases a mapping if the JVM allows it. Left to the garbage
+    // collector otherwise.
+    private static void unmap(ByteBuffer b)
+    {
+        if (!b.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                // Java 9 and later.
+                Method invokeCleaner =
+                    unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), b);
+                return;
+            }
+            catch (NoSuchMethodException e) {
+                // Java 8 and earlier.
+            }
+            Method cleanerMethod = b.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(b);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (Exception e) {
+            // Not supported by this JVM.
+        }
+    }
+
+    private static ByteBuffer map(File file)
+        throws IOException
+    {
+        if (!file.exists()) {
+            return ByteBuffer.allocate(0);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer b =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return isValid(b) ? b : ByteBuffer.allocate(0);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isValid(ByteBuffer b)
+    {
+        if (b.capacity() < HEADER_LENGTH || b.getInt(0) != MAGIC
+                || b.getInt(4) != FORMAT_VERSION) {
+            return false;
+        }
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (b.get(8 + i) != GRAMMAR_VERSION[i]) {
+                return false;
+            }
+        }
+        int numSlots = b.getInt(8 + DIGEST_LENGTH);
+        return numSlots > 0 && Integer.bitCount(numSlots) == 1
+                && HEADER_LENGTH + (long) numSlots * SLOT_LENGTH
+                        <= b.capacity();
+    }
+
+    // Looks up a key in the contents of a file, reading them in place.
+    private static ParseResult find(ByteBuffer b, ParseCache.Key key)
+    {
+        if (b.capacity() == 0) {
+            return null;
+        }
+        int numSlots = b.getInt(8 + DIGEST_LENGTH);
+        byte[] digest = key.getDigest();
+        int dialect = code(key.getDialect());
+        int i = hash(digest, dialect);
+        for (int n = 0; n < numSlots; n++) {
+            int slot = HEADER_LENGTH + (i & (numSlots - 1)) * SLOT_LENGTH;
+            int position = b.getInt(slot + DIGEST_LENGTH + 4);
+            if (position == 0) {
+                return null;
+            }
+            if (b.getInt(slot + DIGEST_LENGTH) == dialect
+                    && matches(b, slot, digest)) {
+                return readEntry(b, position, key.getDialect());
+            }
+            i++;
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer b, int slot, byte[] digest)
+    {
+        for (int k = 0; k < DIGEST_LENGTH; k++) {
+            if (b.get(slot + k) != digest[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void insert(ByteBuffer slots, byte[] digest, int dialect,
+                               int position)
+    {
+        int numSlots = slots.capacity() / SLOT_LENGTH;
+        int i = hash(digest, dialect) & (numSlots - 1);
+        while (slots.getInt(i * SLOT_LENGTH + DIGEST_LENGTH + 4) != 0) {
+            i = (i + 1) & (numSlots - 1);
+        }
+        int slot = i * SLOT_LENGTH;
+        for (int k = 0; k < DIGEST_LENGTH; k++) {
+            slots.put(slot + k, digest[k]);
+        }
+        slots.putInt(slot + DIGEST_LENGTH, dialect);
+        slots.putInt(slot + DIGEST_LENGTH + 4, position);
+    }
+
+    private static void writeEntry(DataOutputStream out, ParseResult result)
+        throws IOException
+    {
+        out.writeInt(result.getNumTokens());
+        out.writeLong(result.getParseTime());
+        out.writeInt(result.getErrors().size());
+        for (String error : result.getErrors()) {
+            byte[] bytes = error.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static ParseResult readEntry(ByteBuffer b, int position,
+                                         Dialect dialect)
+    {
+        int numErrors = b.getInt(position + 12);
+        List<String> errors = new ArrayList<String>(numErrors);
+        int p = position + 16;
+        for (int i = 0; i < numErrors; i++) {
+            byte[] bytes = new byte[b.getInt(p)];
+            p += 4;
+            for (int k = 0; k < bytes.length; k++) {
+                bytes[k] = b.get(p++);
+            }
+            errors.add(utf8(bytes));
+        }
+        return new ParseResult(dialect, errors, b.getInt(position),
+                               b.getLong(position + 4));
+    }
+
+    // Returns the position after an entry.
+    private static int skipEntry(ByteBuffer b, int position)
+    {
+        int numErrors = b.getInt(position + 12);
+        int p = position + 16;
+        for (int i = 0; i < numErrors; i++) {
+            p += 4 + b.getInt(p);
+        }
+        return p;
+    }
+
+    // Index of the first slot to probe for a key.
+    private static int hash(byte[] digest, int dialect)
+    {
+        return ((digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16
+                | (digest[2] & 0xFF) << 8 | digest[3] & 0xFF) ^ dialect;
+    }
+
+    // Part of the key in the file, the same for equal dialects only.
+    private static int code(Dialect dialect)
+    {
+        return 8 * dialect.getXqVersion() + (dialect.getUpdate() ? 4 : 0)
+                + (dialect.getScripting() ? 2 : 0)
+                + (dialect.getFullText() ? 1 : 0);
+    }
+
+    private static String utf8(byte[] bytes)
+    {
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Digest of the classes which determine results of parsing.
+    private static byte[] grammarVersion()
+    {
+        String[] classes =
+            { "Parser", "XQParser", "Lexer", "XQLexer", "XMLexer",
+                    "DirXmlLexer", "XQTokenStream", "core/XQParser",
+                    "update/XQParser", "scripting/XQParser",
+                    "fulltext/XQParser" };
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[8192];
+            for (String name : classes) {
+                InputStream in =
+                    MappedParseCache.class.getResourceAsStream(name
+                            + ".class");
+                if (in == null) {
+                    // A parser not built.
+                    continue;
+                }
+                try {
+                    int n;
+                    while ((n = in.read(chunk)) > 0) {
+                        digest.update(chunk, 0, n);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
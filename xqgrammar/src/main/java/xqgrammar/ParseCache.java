@@ -0,0 +1,341 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of parse results for queries which are parsed again and again. Keys
+ * are the SHA-256 digest of the query together with the dialect, so the
+ * text of queries is not kept.
+ * <p>
+ * Entries are weighed by an estimate of the memory they take, mostly the
+ * messages of errors, and evicted by the CLOCK algorithm once the total
+ * weight exceeds the maximum - an entry read since the hand last passed it
+ * gets a second chance, others are evicted. Entries are added unread, so
+ * that queries seen once are evicted before queries seen again.
+ * <p>
+ * Reads take no lock, they only set the flag of the entry read. Additions
+ * and evictions are serialized.
+ * <p>
+ * A cache may be backed by a {@link MappedParseCache}, which keeps results
+ * across restarts. Results not found in memory are then looked up in it and
+ * results added are added to it too.
+ */
+public final class ParseCache
+{
+    // Estimate of the memory taken by an entry with no errors in bytes.
+    private static final int                      ENTRY_WEIGHT = 256;
+
+    private static final ThreadLocal<MessageDigest> digests      =
+        new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue()
+            {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                }
+                catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+    private final long                            maxWeight;
+    private final MappedParseCache                store;
+    private final ConcurrentMap<Key, Entry>       entries      =
+        new ConcurrentHashMap<Key, Entry>();
+    // Entries in order of the hand, guarded by this.
+    private final Queue<Entry>                    clock        =
+        new ArrayDeque<Entry>();
+    private long                                  weight;
+    private long                                  evictions;
+    private final AtomicLong                      hits         =
+        new AtomicLong();
+    private final AtomicLong                      misses       =
+        new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxWeight maximum total weight of the entries, roughly in bytes
+     */
+    public ParseCache(long maxWeight)
+    {
+        this(maxWeight, null);
+    }
+
+    /**
+     * Creates a cache backed by a file.
+     *
+     * @param maxWeight maximum total weight of the entries, roughly in bytes
+     * @param store     the cache in a file, null for none
+     */
+    public ParseCache(long maxWeight, MappedParseCache store)
+    {
+        if (maxWeight < ENTRY_WEIGHT)
+            throw new IllegalArgumentException("Maximum weight must be at "
+                    + "least " + ENTRY_WEIGHT + ".");
+        this.maxWeight = maxWeight;
+        this.store = store;
+    }
+
+    /**
+     * Retrieves the cache in a file backing this one.
+     *
+     * @return the cache in a file or null if there is none
+     */
+    public MappedParseCache getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Retrieves the result of a query if it is cached.
+     *
+     * @param query   the query
+     * @param dialect the dialect it was parsed in
+     * @return the result or null if it is not cached
+     */
+    public ParseResult get(CharSequence query, Dialect dialect)
+    {
+        return get(key(query, dialect));
+    }
+
+    /**
+     * Adds the result of a query unless it is already cached.
+     *
+     * @param query   the query
+     * @param dialect the dialect it was parsed in
+     * @param result  the result
+     */
+    public void put(CharSequence query, Dialect dialect, ParseResult result)
+    {
+        put(key(query, dialect), result);
+    }
+
+    ParseResult get(Key key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ParseResult result = store != null ? store.get(key) : null;
+            if (result == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            add(key, result);
+            return result;
+        }
+        hits.incrementAndGet();
+        // Avoids writing to memory shared by threads unless needed.
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.result;
+    }
+
+    void put(Key key, ParseResult result)
+    {
+        if (store != null) {
+            store.put(key, result);
+        }
+        add(key, result);
+    }
+
+    private synchronized void add(Key key, ParseResult result)
+    {
+        Entry entry = new Entry(key, result);
+        if (entry.weight > maxWeight || entries.putIfAbsent(key, entry) != null)
+            return;
+        clock.add(entry);
+        weight += entry.weight;
+        // Ends because each step clears a flag or evicts an entry.
+        while (weight > maxWeight) {
+            Entry hand = clock.remove();
+            if (hand.referenced) {
+                hand.referenced = false;
+                clock.add(hand);
+            }
+            else {
+                entries.remove(hand.key);
+                weight -= hand.weight;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries. Statistics are kept.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        clock.clear();
+        weight = 0;
+    }
+
+    /**
+     * Retrieves the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Retrieves the total weight of the entries.
+     *
+     * @return the weight, roughly in bytes
+     */
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Retrieves the number of reads which found a result.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of reads which did not find a result.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of entries evicted to make room for others.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    @Override
+    public String toString()
+    {
+        long h = getHitCount();
+        long m = getMissCount();
+        return size() + " entries, " + h + " hits, " + m + " misses, "
+                + (h + m > 0 ? 100 * h / (h + m) : 0) + "% hit rate";
+    }
+
+    static Key key(CharSequence query, Dialect dialect)
+    {
+        MessageDigest digest = digests.get();
+        byte[] chunk = new byte[2 * Math.min(query.length(), 2048)];
+        int n = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            chunk[n++] = (byte) (c >> 8);
+            chunk[n++] = (byte) c;
+            if (n == chunk.length) {
+                digest.update(chunk, 0, n);
+                n = 0;
+            }
+        }
+        digest.update(chunk, 0, n);
+        return new Key(digest.digest(), dialect);
+    }
+
+    static final class Key
+    {
+        private final byte[]  digest;
+        private final Dialect dialect;
+        private final int     hash;
+
+        Key(byte[] digest, Dialect dialect)
+        {
+            this.digest = digest;
+            this.dialect = dialect;
+            // The digest is already uniformly distributed.
+            this.hash =
+                ((digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16
+                        | (digest[2] & 0xFF) << 8 | digest[3] & 0xFF)
+                        ^ dialect.hashCode();
+        }
+
+        byte[] getDigest()
+        {
+            return digest;
+        }
+
+        Dialect getDialect()
+        {
+            return dialect;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(digest, other.digest)
+                    && dialect.equals(other.dialect);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final Key         key;
+        private final ParseResult result;
+        private final int         weight;
+        private volatile boolean  referenced;
+
+        Entry(Key key, ParseResult result)
+        {
+            this.key = key;
+            this.result = result;
+            int w = ENTRY_WEIGHT;
+            for (String error : result.getErrors()) {
+                w += 64 + 2 * error.length();
+            }
+            this.weight = w;
+        }
+    }
+}
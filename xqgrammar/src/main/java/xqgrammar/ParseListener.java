@@ -0,0 +1,61 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+/**
+ * Receives events of parsing from the parser of package xqgrammar.traced
+ * given it by {@link Parser#setListener(ParseListener)}, in the order of
+ * the input - entry to each rule of the grammar, the tokens matched and
+ * exit from the rule. Analyses which need no tree can be done in a single
+ * pass with memory proportional to the depth of nesting.
+ * <p>
+ * Rules are exited even when parsing fails, in which case tokens skipped in
+ * recovery from errors are passed as if they were matched. The end of input
+ * is passed as a token of type {@link org.antlr.runtime.Token#EOF}.
+ */
+public interface ParseListener
+{
+    /**
+     * Called upon entry to a rule.
+     *
+     * @param ruleName  name of the rule
+     * @param ruleIndex index of the rule in the parser - see {@link Ast}
+     */
+    void enterRule(String ruleName, int ruleIndex);
+
+    /**
+     * Called upon exit from a rule, after its tokens.
+     *
+     * @param ruleName  name of the rule
+     * @param ruleIndex index of the rule in the parser
+     */
+    void exitRule(String ruleName, int ruleIndex);
+
+    /**
+     * Called for each token matched, by the {@link XQTokenStream} of the
+     * parser as the token is consumed. Details of the token, such as its
+     * text, can be retrieved from the stream during the call, even if it is
+     * bounded and discards the token later. Tokens looked at ahead of the
+     * parser and not matched yet are not passed.
+     *
+     * @param type  type of the token
+     * @param index index of the token in the token stream
+     */
+    void token(int type, int index);
+}
@@ -0,0 +1,108 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of parsing a query by {@link ParseService}. Immutable.
+ */
+public final class ParseResult
+{
+    private final Dialect      dialect;
+    private final List<String> errors;
+    private final int          numTokens;
+    private final long         parseTime;
+
+    /**
+     * Creates a result.
+     *
+     * @param dialect   the dialect the query was parsed in
+     * @param errors    messages of the errors found, empty if there are none
+     * @param numTokens number of tokens read by the parser
+     * @param parseTime time taken by parsing in nanoseconds
+     */
+    public ParseResult(Dialect dialect, List<String> errors, int numTokens,
+                       long parseTime)
+    {
+        this.dialect = dialect;
+        this.errors = Collections.unmodifiableList(errors);
+        this.numTokens = numTokens;
+        this.parseTime = parseTime;
+    }
+
+    /**
+     * Retrieves the dialect the query was parsed in.
+     *
+     * @return the dialect
+     */
+    public Dialect getDialect()
+    {
+        return dialect;
+    }
+
+    /**
+     * Tells whether the query is syntactically valid in the dialect.
+     *
+     * @return true if no errors were found
+     */
+    public boolean isValid()
+    {
+        return errors.isEmpty();
+    }
+
+    /**
+     * Retrieves messages of the errors found. Parsing stops at the first
+     * error, so there is at most one.
+     *
+     * @return the messages, in order of occurrence
+     */
+    public List<String> getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * Retrieves the number of tokens read by the parser, up to the error if
+     * there was one.
+     *
+     * @return the number of tokens
+     */
+    public int getNumTokens()
+    {
+        return numTokens;
+    }
+
+    /**
+     * Retrieves the time taken by parsing, lexing included.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getParseTime()
+    {
+        return parseTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return isValid() ? "valid, " + numTokens + " tokens" : errors.get(0);
+    }
+}
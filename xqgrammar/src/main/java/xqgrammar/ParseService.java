@@ -0,0 +1,355 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.antlr.runtime.RecognitionException;
+
+/**
+ * Parses queries for many threads at a time. Parsers are created by
+ * {@link ParserFactory} together with their lexer and token stream and are
+ * reset for each query rather than created anew - see
+ * {@link Parser#reset(org.antlr.runtime.CharStream)}. Each dialect has a
+ * pool of them, bounded by the capacity of the service.
+ * <p>
+ * Parses are run by an executor, either a fixed pool of threads owned by
+ * the service or one given by the caller - such as an executor of virtual
+ * threads on platforms which have them. The capacity is the number of
+ * parses which may be submitted and not yet complete. When it is reached
+ * {@link #submit(CharSequence, Dialect)} waits for a parse to complete,
+ * so that callers are slowed down to the pace of the service instead of
+ * queuing an unbounded amount of work.
+ * <p>
+ * A cancelled parse stops at the next token if it is already running.
+ * Errors are not printed, they are returned in the {@link ParseResult}.
+ * <p>
+ * Results may be cached - see {@link #setCache(ParseCache)}. A result found
+ * in the cache is returned without parsing and keeps the parse time of the
+ * parse which produced it.
+ */
+public class ParseService
+{
+    private final ExecutorService                                  executor;
+    // Whether the executor was created by this service.
+    private final boolean                                          ownExecutor;
+    private final int                                              capacity;
+    private final Semaphore                                        permits;
+    private final ConcurrentMap<Dialect, BlockingQueue<ParserStack>> pools =
+        new ConcurrentHashMap<Dialect, BlockingQueue<ParserStack>>();
+    private volatile ParseCache                                    cache;
+
+    /**
+     * Creates a service which runs parses on a pool of threads of its own.
+     * The threads are daemon threads and are stopped by {@link #shutdown()}.
+     *
+     * @param numThreads number of threads
+     * @param capacity   maximum number of parses submitted and not complete
+     */
+    public ParseService(int numThreads, int capacity)
+    {
+        this(Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread =
+                    new Thread(runnable, "xqgrammar-parser-"
+                            + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true, capacity);
+    }
+
+    /**
+     * Creates a service which runs parses on an executor given by the
+     * caller. The executor is not shut down by {@link #shutdown()}.
+     *
+     * @param executor the executor
+     * @param capacity maximum number of parses submitted and not complete
+     */
+    public ParseService(ExecutorService executor, int capacity)
+    {
+        this(executor, false, capacity);
+    }
+
+    private ParseService(ExecutorService executor, boolean ownExecutor,
+                         int capacity)
+    {
+        if (executor == null)
+            throw new IllegalArgumentException("Executor must not be null.");
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Retrieves the maximum number of parses submitted and not complete.
+     *
+     * @return the capacity
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Sets the cache of results used by later parses.
+     *
+     * @param cache the cache, null for none
+     */
+    public void setCache(ParseCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Retrieves the cache of results.
+     *
+     * @return the cache or null if there is none
+     */
+    public ParseCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Submits a query to be parsed, waiting while the service is at its
+     * capacity.
+     *
+     * @param query   the query
+     * @param dialect the dialect to parse it in
+     * @return the future result - cancelling it stops the parse
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public Future<ParseResult> submit(CharSequence query, Dialect dialect)
+        throws InterruptedException
+    {
+        permits.acquire();
+        return execute(query, dialect);
+    }
+
+    /**
+     * Submits a query to be parsed unless the service stays at its capacity
+     * for the time given.
+     *
+     * @param query   the query
+     * @param dialect the dialect to parse it in
+     * @param timeout how long to wait
+     * @param unit    unit of the timeout
+     * @return the future result or null if the service is at its capacity
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public Future<ParseResult> trySubmit(CharSequence query, Dialect dialect,
+                                         long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        if (!permits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return execute(query, dialect);
+    }
+
+    /**
+     * Parses a query on the calling thread with a pooled parser. Does not
+     * count towards the capacity.
+     *
+     * @param query   the query
+     * @param dialect the dialect to parse it in
+     * @return the result
+     * @throws CancellationException if the thread is interrupted
+     */
+    public ParseResult parse(CharSequence query, Dialect dialect)
+    {
+        ParseCache cache = this.cache;
+        if (cache == null) {
+            return parseUncached(query, dialect);
+        }
+        ParseCache.Key key = ParseCache.key(query, dialect);
+        ParseResult result = cache.get(key);
+        if (result == null) {
+            result = parseUncached(query, dialect);
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    private ParseResult parseUncached(CharSequence query, Dialect dialect)
+    {
+        BlockingQueue<ParserStack> pool = pool(dialect);
+        ParserStack stack = pool.poll();
+        if (stack == null) {
+            stack = new ParserStack(dialect);
+        }
+        try {
+            return stack.parse(query);
+        }
+        finally {
+            // Dropped if the pool is full.
+            pool.offer(stack);
+        }
+    }
+
+    /**
+     * Stops the threads of the service once the parses submitted are
+     * complete. Parses submitted later are rejected. Does nothing to an
+     * executor given by the caller.
+     */
+    public void shutdown()
+    {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private Future<ParseResult> execute(final CharSequence query,
+                                        final Dialect dialect)
+    {
+        FutureTask<ParseResult> task =
+            new FutureTask<ParseResult>(new Callable<ParseResult>() {
+                @Override
+                public ParseResult call()
+                {
+                    return parse(query, dialect);
+                }
+            }) {
+                // Called once, upon completion or cancellation.
+                @Override
+                protected void done()
+                {
+                    permits.release();
+                }
+            };
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+        return task;
+    }
+
+    private BlockingQueue<ParserStack> pool(Dialect dialect)
+    {
+        BlockingQueue<ParserStack> pool = pools.get(dialect);
+        if (pool == null) {
+            pool = new ArrayBlockingQueue<ParserStack>(capacity);
+            BlockingQueue<ParserStack> existing =
+                pools.putIfAbsent(dialect, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    // A parser with its lexer and token stream, used by one thread at a
+    // time.
+    private static final class ParserStack
+    {
+        private final Dialect       dialect;
+        private final XQTokenStream tokens;
+        private final Parser        parser;
+        private final List<String>  errors = new ArrayList<String>();
+
+        ParserStack(Dialect dialect)
+        {
+            this.dialect = dialect;
+            XQLexer lexer = new XQLexer(new CharSequenceStream(""));
+            tokens = new InterruptibleTokenStream(lexer);
+            tokens.setLazyPositions(true);
+            parser = ParserFactory.newParser(tokens, dialect);
+            parser.setErrorMessages(errors);
+            lexer.setOwner(parser);
+        }
+
+        ParseResult parse(CharSequence query)
+        {
+            long start = System.nanoTime();
+            errors.clear();
+            parser.reset(new CharSequenceStream(query));
+            try {
+                parser.module();
+            }
+            catch (CancellationException e) {
+                throw e;
+            }
+            catch (RecognitionException e) {
+                addError(e);
+            }
+            catch (RuntimeException e) {
+                addError(e);
+            }
+            return new ParseResult(dialect, new ArrayList<String>(errors),
+                                   tokens.size(), System.nanoTime() - start);
+        }
+
+        // The message of an error is normally added before it is thrown.
+        private void addError(Exception e)
+        {
+            if (errors.isEmpty()) {
+                errors.add(String.valueOf(e.getMessage()));
+            }
+        }
+    }
+
+    // Stops parsing at the next token once the thread is interrupted, as
+    // it is by cancellation of the running task.
+    private static final class InterruptibleTokenStream
+        extends XQTokenStream
+    {
+        InterruptibleTokenStream(XQLexer lexer)
+        {
+            super(lexer, true, true);
+        }
+
+        @Override
+        public void consume()
+        {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Parse cancelled.");
+            }
+            super.consume();
+        }
+    }
+}
@@ -18,8 +18,12 @@
 
 package xqgrammar;
 
-import java.util.Stack;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.BitSet;
 import org.antlr.runtime.CharStream;
 import org.antlr.runtime.CommonToken;
@@ -39,72 +43,165 @@ import org.antlr.runtime.TokenStream;
  * <li> Provide utilities for "add-on" parsing of details which 
  *      can not or should better not be handled in the generated parser.
  * </li>
+ * <li> Build a syntax tree or pass events of parsing to a listener if
+ *      asked to, when generated with option trace.</li>
  * </ol>
  */
 public class Parser
     extends org.antlr.runtime.Parser
 {
     private CharStream         source;
-    private Stack<TokenSource> lexerStack   = new Stack<TokenSource>();
-    private Stack<Integer>     elemStack    = new Stack<Integer>();
+    // Characters of source if they can be read at token offsets without
+    // copying them, else null - see selectToken().
+    private CharSequence       chars;
+    // Plain lists are used as stacks - no need for synchronized Stack.
+    private List<TokenSource>  lexerStack   = new ArrayList<TokenSource>();
+    // Start and stop offsets of names of open direct elements.
+    private int[]              elemStack    = new int[32];
+    private int                elemDepth;
+    // Lexers for direct XML and enclosed expressions which are not in use
+    // at the moment and can be restarted at current position of source.
+    private List<DirXmlLexer>  xmlLexers    = new ArrayList<DirXmlLexer>();
+    private List<XQLexer>      xqueryLexers = new ArrayList<XQLexer>();
     private boolean            breakOnError = true;
+    // Messages of errors are added here instead of being printed, if set.
+    private List<String>       errorMessages;
+    // Syntax tree built, if any.
+    private Ast                ast;
+    private ParseListener      listener;
+    // Token selected by selectToken(): its text or chars and its range in
+    // them.
+    private CharSequence       text;
+    private int                textStart;
+    private int                textEnd;
 
+    // Token codes of the generated parser - see setTokenCodes().
     @SuppressWarnings("unused")
-    private static int         NCName;
-    private static int         Colon;
+    private int                NCName;
+    private int                Colon;
 
     public static final int    XQUERY_1_0   = 0;
     public static final int    XQUERY_3_0   = 3;
 
-    // Flags enabling XQuery extensions
-    protected static boolean   update       = true;
-    protected static boolean   scripting    = true;
-    protected static boolean   fullText     = true;
+    // Dialect of parsers created without one.
+    private static volatile Dialect defaultDialect = Dialect.DEFAULT;
 
-    // XQuery version - must be one of XQUERY_1_0 or XQUERY_3_0 
+    private final Dialect      dialect;
+    // Flags enabling XQuery extensions, read by predicates of the generated
+    // parser. Copied from the dialect.
+    protected final boolean    update;
+    protected final boolean    scripting;
+    protected final boolean    fullText;
+
+    // XQuery version - one of XQUERY_1_0 or XQUERY_3_0.
     // If strict XQuery 1.0 is needed then see also comments to flworExpr.
-    protected static int       xqVersion    = XQUERY_3_0;
+    protected final int        xqVersion;
+
+    /**
+     * Retrieves the dialect of parsers created without one.
+     *
+     * @return the default dialect
+     */
+    public static Dialect getDefaultDialect()
+    {
+        return defaultDialect;
+    }
+
+    /**
+     * Sets the dialect of parsers created without one. Parsers which have
+     * already been created are not affected.
+     *
+     * @param dialect the dialect to be used by default
+     */
+    public static void setDefaultDialect(Dialect dialect)
+    {
+        if (dialect == null)
+            throw new IllegalArgumentException("Dialect must not be null.");
+        defaultDialect = dialect;
+    }
 
+    /**
+     * @deprecated use {@link #getDefaultDialect()} or {@link #getDialect()}
+     */
+    @Deprecated
     public static boolean getUpdate()
     {
-        return update;
+        return defaultDialect.getUpdate();
     }
 
+    /**
+     * @deprecated use {@link #getDefaultDialect()} or {@link #getDialect()}
+     */
+    @Deprecated
     public static boolean getScripting()
     {
-        return scripting;
+        return defaultDialect.getScripting();
     }
 
+    /**
+     * @deprecated use {@link #getDefaultDialect()} or {@link #getDialect()}
+     */
+    @Deprecated
     public static boolean getFullText()
     {
-        return fullText;
+        return defaultDialect.getFullText();
     }
 
+    /**
+     * @deprecated use {@link #getDefaultDialect()} or {@link #getDialect()}
+     */
+    @Deprecated
     public static int getXqVersion()
     {
-        return xqVersion;
+        return defaultDialect.getXqVersion();
     }
 
-    public static void setUpdate(boolean value)
+    /**
+     * @deprecated create parsers with a {@link Dialect} instead
+     */
+    @Deprecated
+    public static synchronized void setUpdate(boolean value)
     {
-        update = value;
+        Dialect d = defaultDialect;
+        defaultDialect =
+            new Dialect(d.getXqVersion(), value, d.getScripting(),
+                        d.getFullText());
     }
 
-    public static void setScripting(boolean value)
+    /**
+     * @deprecated create parsers with a {@link Dialect} instead
+     */
+    @Deprecated
+    public static synchronized void setScripting(boolean value)
     {
-        scripting = value;
+        Dialect d = defaultDialect;
+        defaultDialect =
+            new Dialect(d.getXqVersion(), d.getUpdate(), value,
+                        d.getFullText());
     }
 
-    public static void setFullText(boolean value)
+    /**
+     * @deprecated create parsers with a {@link Dialect} instead
+     */
+    @Deprecated
+    public static synchronized void setFullText(boolean value)
     {
-        fullText = value;
+        Dialect d = defaultDialect;
+        defaultDialect =
+            new Dialect(d.getXqVersion(), d.getUpdate(), d.getScripting(),
+                        value);
     }
 
-    public static void setXqVersion(int value)
+    /**
+     * @deprecated create parsers with a {@link Dialect} instead
+     */
+    @Deprecated
+    public static synchronized void setXqVersion(int value)
     {
-        if (value != XQUERY_1_0 && value != XQUERY_3_0)
-            throw new IllegalArgumentException("Unknown XQuery version.");
-        xqVersion = value;
+        Dialect d = defaultDialect;
+        defaultDialect =
+            new Dialect(value, d.getUpdate(), d.getScripting(),
+                        d.getFullText());
     }
 
     public Parser(XQTokenStream input)
@@ -113,9 +210,137 @@ public class Parser
     }
 
     public Parser(TokenStream input, RecognizerSharedState state)
+    {
+        this(input, state, defaultDialect);
+    }
+
+    public Parser(TokenStream input, RecognizerSharedState state,
+                  Dialect dialect)
     {
         super(input, state);
+        if (dialect == null)
+            throw new IllegalArgumentException("Dialect must not be null.");
+        this.dialect = dialect;
+        this.update = dialect.getUpdate();
+        this.scripting = dialect.getScripting();
+        this.fullText = dialect.getFullText();
+        this.xqVersion = dialect.getXqVersion();
         source = ((Lexer) input.getTokenSource()).getCharStream();
+        if (source instanceof CharSequenceStream) {
+            chars = ((CharSequenceStream) source).getCharSequence();
+        }
+    }
+
+    /**
+     * Retrieves the dialect accepted by this parser.
+     *
+     * @return the dialect given at creation time
+     */
+    public Dialect getDialect()
+    {
+        return dialect;
+    }
+
+    /**
+     * Parses a main or library module. Overriden by the generated XQuery
+     * parsers, so that a parser obtained from {@link ParserFactory} can be
+     * run without knowing which one it is.
+     *
+     * @throws RecognitionException
+     */
+    public void module()
+        throws RecognitionException
+    {
+        throw new UnsupportedOperationException("Not an XQuery parser.");
+    }
+
+    /**
+     * Prepares the parser, its {@link XQTokenStream} and the lexers for
+     * parsing of new input. Tokens, lexer and element stacks, error counts
+     * and shared state of the parser and the lexers are cleared, while
+     * token storage, pooled lexers and settings of all of them are kept.
+     * The results of parsing are then the same as those of a new parser
+     * created with a new token stream and lexer of the same kinds and with
+     * the same settings - the previous parse may even have failed half way.
+     *
+     * @param source the input to be parsed next, at its beginning
+     */
+    public void reset(CharStream source)
+    {
+        super.reset();
+        resetInput(source);
+    }
+
+    /**
+     * Overriden in order to reset the token stream and the lexers as well -
+     * see {@link #reset(CharStream)}. The same input is parsed again. It is
+     * rewound to its beginning, which only restarts line counting for
+     * ANTLRStringStream and for the streams in this package.
+     */
+    @Override
+    public void reset()
+    {
+        super.reset();
+        // The base class calls this with no input when input is replaced.
+        if (input != null) {
+            if (source instanceof ANTLRStringStream) {
+                ((ANTLRStringStream) source).reset();
+            }
+            else if (source instanceof AbstractCharStream) {
+                ((AbstractCharStream) source).reset();
+            }
+            resetInput(source);
+        }
+    }
+
+    /**
+     * Overriden in order to move the listener, if any, to the new token
+     * stream - see {@link #setListener(ParseListener)}.
+     */
+    @Override
+    public void setTokenStream(TokenStream input)
+    {
+        if (listener != null) {
+            ((XQTokenStream) this.input).setListener(null);
+        }
+        super.setTokenStream(input);
+        if (listener != null) {
+            ((XQTokenStream) input).setListener(listener);
+        }
+    }
+
+    private void resetInput(CharStream source)
+    {
+        // Return lexers left in use by the last parse to the pools. Only
+        // the lexer the parse started with is not pooled.
+        while (!lexerStack.isEmpty()) {
+            TokenSource lexer = popLexer();
+            if (lexer instanceof DirXmlLexer) {
+                xmlLexers.add((DirXmlLexer) lexer);
+            }
+            else {
+                xqueryLexers.add((XQLexer) lexer);
+            }
+        }
+        if (source != this.source) {
+            for (DirXmlLexer lexer : xmlLexers) {
+                lexer.setCharStream(source);
+            }
+            for (XQLexer lexer : xqueryLexers) {
+                lexer.setCharStream(source);
+            }
+        }
+        ((Lexer) input.getTokenSource()).setCharStream(source);
+        ((XQTokenStream) input).reset();
+        this.source = source;
+        chars =
+            source instanceof CharSequenceStream ? ((CharSequenceStream) source)
+                .getCharSequence() : null;
+        elemDepth = 0;
+        text = null;
+        if (ast != null) {
+            ast.clear();
+        }
     }
 
     /**
@@ -140,13 +365,147 @@ public class Parser
         return breakOnError;
     }
 
+    /**
+     * Sets a list to which messages of errors are added instead of being
+     * printed. Messages of the lexers created by the parser for direct XML
+     * and enclosed expressions are added too. Default value is null, which
+     * means that messages are printed to standard error.
+     *
+     * @param errorMessages the list or null
+     */
+    public void setErrorMessages(List<String> errorMessages)
+    {
+        this.errorMessages = errorMessages;
+    }
+
+    /**
+     * Retrieves the list to which messages of errors are added.
+     *
+     * @return the list or null if messages are printed
+     */
+    public List<String> getErrorMessages()
+    {
+        return errorMessages;
+    }
+
+    /**
+     * Sets a tree to which nodes are added for the rules matched by the
+     * parser. Default value is null, which means that no tree is built. The
+     * tree is cleared when the parser is reset. Only the parser of package
+     * xqgrammar.traced builds trees - see {@link #isTraced()}.
+     *
+     * @param ast the tree or null
+     * @throws IllegalStateException if the parser builds no trees
+     */
+    public void setAst(Ast ast)
+    {
+        if (ast != null && !isTraced())
+            throw new IllegalStateException("Parser builds no trees.");
+        this.ast = ast;
+    }
+
+    /**
+     * Retrieves the tree to which nodes are added.
+     *
+     * @return the tree or null if no tree is built
+     */
+    public Ast getAst()
+    {
+        return ast;
+    }
+
+    /**
+     * Sets a listener to which events of parsing are passed. Default value
+     * is null, which means that there is none. Only the parser of package
+     * xqgrammar.traced passes events - see {@link #isTraced()}. Tokens are
+     * passed by the token stream as they are consumed.
+     *
+     * @param listener the listener or null
+     * @throws IllegalStateException if the parser passes no events
+     */
+    public void setListener(ParseListener listener)
+    {
+        if (listener != null && !isTraced())
+            throw new IllegalStateException("Parser passes no events.");
+        this.listener = listener;
+        ((XQTokenStream) input).setListener(listener);
+    }
+
+    /**
+     * Retrieves the listener to which events of parsing are passed.
+     *
+     * @return the listener or null if there is none
+     */
+    public ParseListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Tells whether the parser is generated with option trace, so that it
+     * calls {@link #traceIn(String, int)} and
+     * {@link #traceOut(String, int)} and can build syntax trees. Only the
+     * parser of package xqgrammar.traced is, so that the others do not pay
+     * for calls upon entry to and exit from each rule.
+     *
+     * @return true for the parser of package xqgrammar.traced
+     */
+    protected boolean isTraced()
+    {
+        return false;
+    }
+
+    /**
+     * Overriden in order to add a node to the syntax tree, if any, and to
+     * pass the entry to the listener, if any, upon entry to a rule. Called
+     * only by the parser generated with option trace - see
+     * {@link #isTraced()}.
+     */
+    @Override
+    public void traceIn(String ruleName, int ruleIndex)
+    {
+        if (state.backtracking > 0) {
+            return;
+        }
+        if (ast != null) {
+            ast.open(ruleIndex, ruleName, input.index() + 1);
+        }
+        if (listener != null) {
+            listener.enterRule(ruleName, ruleIndex);
+        }
+    }
+
+    /**
+     * Overriden in order to complete the node of a rule and to pass the exit
+     * to the listener upon exit from the rule.
+     */
+    @Override
+    public void traceOut(String ruleName, int ruleIndex)
+    {
+        if (state.backtracking > 0) {
+            return;
+        }
+        if (ast != null) {
+            ast.close(input.index());
+        }
+        if (listener != null) {
+            listener.exitRule(ruleName, ruleIndex);
+        }
+    }
+
     /**
      * A placeholder for implementation of custom error message handling.
+     * Lexers created by the parser pass their messages here too.
      */
     @Override
     public void emitErrorMessage(String message)
     {
-        super.emitErrorMessage(message);
+        if (errorMessages != null) {
+            errorMessages.add(message);
+        }
+        else {
+            super.emitErrorMessage(message);
+        }
     }
 
     /**
@@ -163,6 +522,20 @@ public class Parser
         }
     }
 
+    /**
+     * Overriden in order to avoid creation of a token for each match when
+     * the token stream is in compact mode. The generated parser does not
+     * use tokens returned by match(), so none is created for it.
+     */
+    @Override
+    protected Object getCurrentInputSymbol(IntStream input)
+    {
+        if (((XQTokenStream) input).isCompact()) {
+            return null;
+        }
+        return super.getCurrentInputSymbol(input);
+    }
+
     /**
      * Overriden in order to produce XQToken instead of CommonToken.
      */
@@ -197,65 +570,119 @@ public class Parser
 
     /**
      * Notifies the base parser that generated parser enters a direct
-     * XML element declaration. The action taken is to instantiate and
-     * start using a new XMLexer.
+     * XML element declaration. The action taken is to start using a
+     * {@link DirXmlLexer} - a pooled one if available or else a new one.
      */
     protected void enterDirXml()
     {
-        lexerStack.push(input.getTokenSource());
-        XMLexer XMLexer = new XMLexer(source);
-        ((XQTokenStream) input).setTokenSource(XMLexer);
+        DirXmlLexer xmlLexer;
+        if (xmlLexers.isEmpty()) {
+            xmlLexer = new DirXmlLexer(source);
+            xmlLexer.setOwner(this);
+        }
+        else {
+            xmlLexer = xmlLexers.remove(xmlLexers.size() - 1);
+            xmlLexer.restart();
+        }
+        pushLexer(xmlLexer);
     }
 
     /**
      * Notifies the base parser that generated parser leaves a direct
-     * XML element definition. The action taken is to discard current
-     * XMLexer in use and switch back to the lexer used before it was
-     * instantiated.
+     * XML element definition. The action taken is to return current
+     * XMLexer in use to the pool and switch back to the lexer used before
+     * it.
      */
     protected void leaveDirXml()
     {
-        popLexer();
+        xmlLexers.add((DirXmlLexer) popLexer());
     }
 
     /**
      * Notifies base parser that generated parser enters section of 
      * computed xquery code embedded within direct XML. The action
-     * taken is to instantiate and start using a new instance of
-     * XQLexer.
+     * taken is to start using an XQLexer - a pooled one if available or
+     * else a new one.
      */
     protected void enterXQuery()
     {
-        lexerStack.push(input.getTokenSource());
-        XQLexer xqueryLexer = new XQLexer(source);
-        ((XQTokenStream) input).setTokenSource(xqueryLexer);
+        XQLexer xqueryLexer;
+        if (xqueryLexers.isEmpty()) {
+            xqueryLexer = new XQLexer(source);
+            xqueryLexer.setOwner(this);
+        }
+        else {
+            xqueryLexer = xqueryLexers.remove(xqueryLexers.size() - 1);
+            xqueryLexer.restart();
+        }
+        pushLexer(xqueryLexer);
     }
 
     /**
      * Notifies base parser that generated parser leaves section of 
      * computed xquery code embedded within direct XML. The action
-     * taken is to discard current XQLexer and switch back to the lexer
-     * used befeore it was instantiated.
+     * taken is to return current XQLexer to the pool and switch back to
+     * the lexer used befeore it.
      */
     protected void leaveXQuery()
     {
-        popLexer();
+        xqueryLexers.add((XQLexer) popLexer());
     }
 
-    private void popLexer()
+    private void pushLexer(TokenSource lexer)
     {
-        TokenSource tokenSource = lexerStack.pop();
+        lexerStack.add(input.getTokenSource());
+        ((XQTokenStream) input).setTokenSource(lexer);
+    }
+
+    // Returns the lexer which was in use.
+    private TokenSource popLexer()
+    {
+        TokenSource current = input.getTokenSource();
+        TokenSource tokenSource = lexerStack.remove(lexerStack.size() - 1);
         ((XQTokenStream) input).setTokenSource(tokenSource);
+        return current;
     }
 
     /**
-     * An empty hook. Called when generated parser encounters encoding
-     * declaration. According to W3C recommendation handling of such
-     * declaration is implementation dependent, so here it is left to
-     * language prpcessor designers...
+     * Called when generated parser encounters encoding declaration. Checks
+     * that the encoding name is syntactically valid (err:XQST0087). Beyond
+     * that handling of such declaration is implementation dependent
+     * according to W3C recommendation. {@link ByteChannelStream} honours it
+     * when decoding its input, other streams are already decoded by the
+     * time the declaration is parsed.
+     * 
+     * @throws RecognitionException
      */
     protected void checkEncoding()
+        throws RecognitionException
     {
+        String literal = input.get(input.index()).getText();
+        String encoding = literal.substring(1, literal.length() - 1);
+        if (!isEncName(encoding)) {
+            raiseError("Invalid encoding name " + literal + ".");
+        }
+    }
+
+    // EncName ::= [A-Za-z] ([A-Za-z0-9._] | '-')*
+    private static boolean isEncName(String name)
+    {
+        if (name.length() == 0 || !isLatinLetter(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!isLatinLetter(c) && !(c >= '0' && c <= '9') && c != '.'
+                    && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLatinLetter(char c)
+    {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
     }
 
     /**
@@ -267,7 +694,7 @@ public class Parser
     protected void noSpaceBefore()
         throws RecognitionException
     {
-        if (((XQToken) input.get(input.index())).spaceBefore) {
+        if (((XQTokenStream) input).isSpaceBefore(input.index())) {
             raiseError("Space not allowed before '"
                     + input.get(input.index()).getText() + "'.");
         }
@@ -284,7 +711,7 @@ public class Parser
         throws RecognitionException
     {
         if ((input.LA(-1) == previous)
-                && !((XQToken) input.get(input.index())).spaceBefore) {
+                && !((XQTokenStream) input).isSpaceBefore(input.index())) {
             raiseError("Space required before "
                     + input.get(input.index()).getText() + "'.");
         }
@@ -292,11 +719,18 @@ public class Parser
 
     /**
      * Push direct xml element on stack, so that later its name can be compared
-     * to name of the closing tag (if any). 
+     * to name of the closing tag (if any). Only the offsets of the name are
+     * kept.
      */
     protected void pushElemName()
     {
-        elemStack.push(input.index());
+        if (elemDepth == elemStack.length) {
+            elemStack = Arrays.copyOf(elemStack, 2 * elemStack.length);
+        }
+        int index = input.index();
+        XQTokenStream tokens = (XQTokenStream) input;
+        elemStack[elemDepth++] = tokens.getStartIndex(qNameStart(index));
+        elemStack[elemDepth++] = tokens.getStopIndex(index);
     }
 
     /**
@@ -305,40 +739,62 @@ public class Parser
      */
     protected void popElemName()
     {
-        elemStack.pop();
+        elemDepth -= 2;
     }
 
     /**
      * Check whether name of closing direct xml element tag matches name 
-     * of opening tag. Throw error if names do not match.
+     * of opening tag. Throw error if names do not match. The names are
+     * compared in place in the character stream.
      * 
      * @throws RecognitionException
      */
     protected void matchElemName()
         throws RecognitionException
     {
-        String opening = getQName(elemStack.pop());
-        String closing = getQName(input.index());
-        if (!opening.equals(closing)) {
-            raiseError("Closing tag name '" + closing
-                    + " must match opening tag name '" + opening + "'.");
+        int openingStop = elemStack[--elemDepth];
+        int openingStart = elemStack[--elemDepth];
+        int index = input.index();
+        XQTokenStream tokens = (XQTokenStream) input;
+        int closingStart = tokens.getStartIndex(qNameStart(index));
+        int closingStop = tokens.getStopIndex(index);
+        if (!sameChars(openingStart, openingStop, closingStart, closingStop)) {
+            raiseError("Closing tag name '"
+                    + source.substring(closingStart, closingStop)
+                    + " must match opening tag name '"
+                    + source.substring(openingStart, openingStop) + "'.");
         }
     }
 
-    private String getQName(int index)
-        throws RecognitionException
+    // Index of the first token of a QName which ends with token at
+    // specified index.
+    private int qNameStart(int index)
     {
-        if ((index < 2) || input.get(index - 1).getType() != Colon) {
-            return input.get(index).getText();
+        if ((index < 2)
+                || ((XQTokenStream) input).getType(index - 1) != Colon) {
+            return index;
         }
-        else {
-            //if(input.get(index - 2).getType() != NCName) {
-            //    raiseError("Parser internal error.");
-            //}
-            return input.get(index - 2).getText()
-                    + input.get(index - 1).getText()
-                    + input.get(index).getText();
+        //if(input.get(index - 2).getType() != NCName) {
+        //    raiseError("Parser internal error.");
+        //}
+        return index - 2;
+    }
+
+    private boolean sameChars(int start1, int stop1, int start2, int stop2)
+    {
+        if (chars == null) {
+            return source.substring(start1, stop1)
+                .equals(source.substring(start2, stop2));
         }
+        if (stop1 - start1 != stop2 - start2) {
+            return false;
+        }
+        for (int i = start1, j = start2; i <= stop1; i++, j++) {
+            if (chars.charAt(i) != chars.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -350,11 +806,49 @@ public class Parser
      */
     protected boolean setTokenCodes(int NCName, int Colon)
     {
-        Parser.NCName = NCName;
-        Parser.Colon = Colon;
+        this.NCName = NCName;
+        this.Colon = Colon;
         return false;
     }
 
+    /**
+     * Check content of direct xml comment constructor parsed by generated
+     * parser. Throws error if content contains the forbidden sequence '--'.
+     * 
+     * @throws RecognitionException
+     */
+    protected void checkDirComment()
+        throws RecognitionException
+    {
+        validateDirComment();
+    }
+
+    private void validateDirComment()
+        throws RecognitionException
+    {
+        selectToken(input.index());
+        // "<!--" content "-->"
+        int end = textEnd - 3;
+        for (int i = textStart + 4; i < end; i++) {
+            if (text.charAt(i) == '-'
+                    && (i + 1 == end || text.charAt(i + 1) == '-')) {
+                raiseError("String '--' not allowed in xml comment.");
+            }
+        }
+    }
+
+    /**
+     * Retrieves content of direct xml comment constructor parsed by generated
+     * parser without copying it.
+     * 
+     * @return view of comment content
+     */
+    protected CharSequence getDirCommentContent()
+    {
+        selectToken(input.index());
+        return CharBuffer.wrap(text, textStart + 4, textEnd - 3);
+    }
+
     /**
      * Extract content of direct xml comment constructor parsed by generated
      * parser. Throws error if contenct contains the forbidden sequence '--'.
@@ -365,15 +859,20 @@ public class Parser
     protected String parseDirComment()
         throws RecognitionException
     {
-        String content = input.get(input.index()).getText().substring(4);
-        content = content.substring(0, content.length() - 3);
-        int length = content.length();
-        if (length > 0
-                && (content.contains("--") || content.charAt(length - 1) == '-')) {
-            raiseError("String '--' not allowed in xml comment.");
-        }
+        validateDirComment();
+        return getDirCommentContent().toString();
+    }
 
-        return content;
+    /**
+     * Retrieves content of direct xml CDATA section constructor parsed by the
+     * generated parser without copying it.
+     * 
+     * @return view of CDATA section content
+     */
+    protected CharSequence getCDataContent()
+    {
+        selectToken(input.index());
+        return CharBuffer.wrap(text, textStart + 9, textEnd - 3);
     }
 
     /**
@@ -387,10 +886,64 @@ public class Parser
     protected String parseCData()
         throws RecognitionException
     {
-        String content = input.get(input.index()).getText().substring(9);
-        content = content.substring(0, content.length() - 3);
+        return getCDataContent().toString();
+    }
 
-        return content;
+    /**
+     * Check target of direct xml processing instruction parsed by the
+     * generated parser. Throws exception if processing instruction target
+     * is invalid (equal to 'xml' ignoring case).
+     * 
+     * @throws RecognitionException
+     */
+    protected void checkDirPI()
+        throws RecognitionException
+    {
+        validateDirPI();
+    }
+
+    private void validateDirPI()
+        throws RecognitionException
+    {
+        selectToken(input.index());
+        int start = textStart + 2;
+        if (text.charAt(start) <= '\u0020') {
+            raiseError("Procesing instruction may not start with wihte space.");
+        }
+        int end = skipName(start, textEnd - 2);
+        if (end - start == 3 && (text.charAt(start) | 0x20) == 'x'
+                && (text.charAt(start + 1) | 0x20) == 'm'
+                && (text.charAt(start + 2) | 0x20) == 'l') {
+            raiseError(text.subSequence(start, end)
+                    + " is not a valid processing instruction name.");
+        }
+    }
+
+    /**
+     * Retrieves target of direct xml processing instruction parsed by the
+     * generated parser without copying it.
+     * 
+     * @return view of processing instruction target
+     */
+    protected CharSequence getDirPITarget()
+    {
+        selectToken(input.index());
+        int start = textStart + 2;
+        return CharBuffer.wrap(text, start, skipName(start, textEnd - 2));
+    }
+
+    /**
+     * Retrieves content of direct xml processing instruction parsed by the
+     * generated parser without copying it.
+     * 
+     * @return view of processing instruction content
+     */
+    protected CharSequence getDirPIContent()
+    {
+        selectToken(input.index());
+        int limit = textEnd - 2;
+        int start = skipSpace(skipName(textStart + 2, limit), limit);
+        return CharBuffer.wrap(text, start, limit);
     }
 
     /**
@@ -406,30 +959,57 @@ public class Parser
     protected Pair<String, String> parseDirPI()
         throws RecognitionException
     {
-        String text = input.get(input.index()).getText();
-        if (text.charAt(2) <= '\u0020') {
-            raiseError("Procesing instruction may not start with wihte space.");
-        }
-        int limit = text.length() - 2;
-        int i = 2;
-        while ((i < limit) && (text.charAt(i) > '\u0020')) {
-            ++i;
-        }
-        String target = text.substring(2, i);
-        if (target.equalsIgnoreCase("xml")) {
-            raiseError(target + " is not a valid processing instruction name.");
-        }
-        while (text.charAt(i) <= '\u0020') {
-            ++i;
-        }
-        String content = text.substring(i, limit);
+        validateDirPI();
+        return new Pair<String, String>(getDirPITarget().toString(),
+                                        getDirPIContent().toString());
+    }
 
-        return new Pair<String, String>(target, content);
+    /**
+     * Retrieves prefix of the QName of pragma parsed by the generated parser
+     * without copying it.
+     * 
+     * @return view of the prefix, empty if there is none
+     */
+    protected CharSequence getPragmaPrefix()
+    {
+        selectToken(input.index());
+        int start = skipSpace(textStart + 2, textEnd - 2);
+        int colon = findColon(start, skipName(start, textEnd - 2));
+        return CharBuffer.wrap(text, start, colon >= 0 ? colon : start);
+    }
+
+    /**
+     * Retrieves local name of the QName of pragma parsed by the generated
+     * parser without copying it.
+     * 
+     * @return view of the local name
+     */
+    protected CharSequence getPragmaLocalName()
+    {
+        selectToken(input.index());
+        int start = skipSpace(textStart + 2, textEnd - 2);
+        int end = skipName(start, textEnd - 2);
+        int colon = findColon(start, end);
+        return CharBuffer.wrap(text, colon >= 0 ? colon + 1 : start, end);
     }
 
     /**
-     * Extract name and content of direct xml pragma constructor parsed by
-     * the generated parser.
+     * Retrieves content of pragma parsed by the generated parser without
+     * copying it.
+     * 
+     * @return view of pragma content
+     */
+    protected CharSequence getPragmaContent()
+    {
+        selectToken(input.index());
+        int limit = textEnd - 2;
+        int start = skipSpace(textStart + 2, limit);
+        start = skipSpace(skipName(start, limit), limit);
+        return CharBuffer.wrap(text, start, limit);
+    }
+
+    /**
+     * Extract name and content of pragma parsed by the generated parser.
      * 
      * @return a pair where the first element is pair of prefix and name 
      *         constituting a QName and second element is pragma text content.
@@ -439,34 +1019,53 @@ public class Parser
     protected Pair<Pair<String, String>, String> parsePragma()
         throws RecognitionException
     {
-        String text = input.get(input.index()).getText();
-        int start = 2;
-        while (text.charAt(start) <= '\u0020') {
-            ++start;
+        return new Pair<Pair<String, String>, String>(
+            new Pair<String, String>(getPragmaPrefix().toString(),
+                                     getPragmaLocalName().toString()),
+            getPragmaContent().toString());
+    }
+
+    // Selects token at specified index for the methods above, which work
+    // on range [textStart, textEnd) of text. That is the underlying
+    // characters when they are available and else text of the token.
+    private void selectToken(int index)
+    {
+        if (chars != null) {
+            XQTokenStream tokens = (XQTokenStream) input;
+            text = chars;
+            textStart = tokens.getStartIndex(index);
+            textEnd = tokens.getStopIndex(index) + 1;
         }
-        int limit = text.length() - 2;
-        int i = start;
+        else {
+            text = input.get(index).getText();
+            textStart = 0;
+            textEnd = text.length();
+        }
+    }
+
+    private int skipName(int i, int limit)
+    {
         while ((i < limit) && (text.charAt(i) > '\u0020')) {
             ++i;
         }
-        String prefix = "";
-        String target = text.substring(start, i);
-        if (text.charAt(i) == ':') {
-            while ((i < limit) && (text.charAt(i) > '\u0020')) {
-                ++i;
-            }
-            prefix = target;
-            target = text.substring(2, i);
-        }
-        while (text.charAt(i) <= '\u0020') {
+        return i;
+    }
+
+    private int skipSpace(int i, int limit)
+    {
+        while ((i < limit) && (text.charAt(i) <= '\u0020')) {
             ++i;
         }
-        String content = text.substring(i, limit);
+        return i;
+    }
 
-        return new Pair<Pair<String, String>, String>(
-                                                      new Pair<String, String>(
-                                                                               prefix,
-                                                                               target),
-                                                      content);
+    private int findColon(int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == ':') {
+                return i;
+            }
+        }
+        return -1;
     }
 }
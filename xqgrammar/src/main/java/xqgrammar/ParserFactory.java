@@ -0,0 +1,113 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import org.antlr.runtime.TokenStream;
+
+/**
+ * Creates parsers for a dialect. {@link XQParser} accepts any dialect, but
+ * has to decide on the extensions at nearly every step. The build also
+ * generates parsers for XQuery 3.0 alone and with a single extension, which
+ * do not have most alternatives of the other extensions at all. The factory
+ * picks the smallest parser which supports the extensions of the requested
+ * dialect, falling back to {@link XQParser} when there is no such parser.
+ */
+public final class ParserFactory
+{
+    // Packages of the parsers for the sets of extensions enabled, indexed
+    // by 4 * update + 2 * scripting + fullText. Null where there is none.
+    private static final String[]         PACKAGES     =
+        { "core", "fulltext", "scripting", null, "update", null, null, null };
+    private static final Constructor<?>[] CONSTRUCTORS =
+        new Constructor<?>[PACKAGES.length];
+
+    static {
+        for (int i = 0; i < PACKAGES.length; i++) {
+            if (PACKAGES[i] == null) {
+                continue;
+            }
+            try {
+                Class<?> parserClass =
+                    Class.forName("xqgrammar." + PACKAGES[i] + ".XQParser");
+                CONSTRUCTORS[i] =
+                    parserClass.getConstructor(TokenStream.class,
+                                               Dialect.class);
+            }
+            catch (ClassNotFoundException e) {
+                // not generated, as by builds outside of Maven
+            }
+            catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private ParserFactory()
+    {
+    }
+
+    /**
+     * Creates a parser for a dialect.
+     *
+     * @param input   tokens to be parsed
+     * @param dialect the dialect to be accepted
+     * @return a parser - {@link Parser#module()} parses the input
+     */
+    public static Parser newParser(TokenStream input, Dialect dialect)
+    {
+        Constructor<?> constructor = CONSTRUCTORS[index(dialect)];
+        if (constructor == null) {
+            return new XQParser(input, dialect);
+        }
+        try {
+            return (Parser) constructor.newInstance(input, dialect);
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tells whether parsers for a dialect are specialized for it or are
+     * instances of the general {@link XQParser}.
+     *
+     * @param dialect the dialect
+     * @return true if a specialized parser has been built for the dialect
+     */
+    public static boolean isSpecialized(Dialect dialect)
+    {
+        return CONSTRUCTORS[index(dialect)] != null;
+    }
+
+    private static int index(Dialect dialect)
+    {
+        return (dialect.getUpdate() ? 4 : 0)
+                + (dialect.getScripting() ? 2 : 0)
+                + (dialect.getFullText() ? 1 : 0);
+    }
+}
@@ -0,0 +1,250 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads queries from a log with one query per line. A line may hold:
+ * <ol>
+ * <li> A JSON string - the query is its value.</li>
+ * <li> A JSON object - the query is the string value of its "query" member.
+ * </li>
+ * <li> Any other text - the query is the text with JSON escapes such as
+ *      "\n" replaced by the characters they stand for.</li>
+ * </ol>
+ * Blank lines are skipped. Only one line is kept in memory at a time, so
+ * logs of any length can be read.
+ */
+final class QueryLog
+{
+    private final BufferedReader reader;
+    private int                  lineNumber;
+    // Scanning state of the line being decoded.
+    private String               line;
+    private int                  pos;
+
+    QueryLog(Reader reader)
+    {
+        this.reader = new BufferedReader(reader);
+    }
+
+    /**
+     * Reads the next query.
+     *
+     * @return the query or null at end of the log
+     * @throws IOException if the log can not be read or a line holds an
+     *         object without a "query" member or with malformed JSON
+     */
+    String next()
+        throws IOException
+    {
+        for (;;) {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            lineNumber++;
+            pos = 0;
+            skipSpace();
+            if (pos == line.length()) {
+                continue;
+            }
+            if (line.charAt(pos) == '"') {
+                return readString();
+            }
+            if (line.charAt(pos) == '{') {
+                return readQueryMember();
+            }
+            return unescape(line, 0, line.length());
+        }
+    }
+
+    /**
+     * Retrieves the number of the line of the last query read, starting
+     * from 1.
+     */
+    int getLineNumber()
+    {
+        return lineNumber;
+    }
+
+    private String readQueryMember()
+        throws IOException
+    {
+        pos++;
+        String query = null;
+        for (;;) {
+            skipSpace();
+            if (pos < line.length() && line.charAt(pos) == '}') {
+                break;
+            }
+            String name = readString();
+            skipSpace();
+            expect(':');
+            skipSpace();
+            if (name.equals("query")) {
+                query = readString();
+            }
+            else {
+                skipValue();
+            }
+            skipSpace();
+            if (pos < line.length() && line.charAt(pos) == ',') {
+                pos++;
+            }
+            else {
+                expect('}');
+                break;
+            }
+        }
+        if (query == null) {
+            throw error("No \"query\" member");
+        }
+        return query;
+    }
+
+    // Skips a value other than a string, nested values included.
+    private void skipValue()
+        throws IOException
+    {
+        int depth = 0;
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            if (c == '"') {
+                readString();
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            }
+            else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+            }
+            else if (c == ',' && depth == 0) {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private String readString()
+        throws IOException
+    {
+        expect('"');
+        int start = pos;
+        while (pos < line.length() && line.charAt(pos) != '"') {
+            pos += line.charAt(pos) == '\\' ? 2 : 1;
+        }
+        expect('"');
+        return unescape(line, start, pos - 1);
+    }
+
+    private void expect(char c)
+        throws IOException
+    {
+        if (pos >= line.length() || line.charAt(pos) != c) {
+            throw error("'" + c + "' expected");
+        }
+        pos++;
+    }
+
+    private void skipSpace()
+    {
+        while (pos < line.length() && line.charAt(pos) <= ' ') {
+            pos++;
+        }
+    }
+
+    private IOException error(String message)
+    {
+        return new IOException(message + " at line " + lineNumber
+                + ", column " + (pos + 1) + ".");
+    }
+
+    /**
+     * Replaces JSON escapes in a range of text by the characters they stand
+     * for. Malformed escapes are kept as they are.
+     */
+    static String unescape(String s, int start, int end)
+    {
+        if (s.indexOf('\\', start) < 0 || s.indexOf('\\', start) >= end) {
+            return s.substring(start, end);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == end) {
+                sb.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            switch (next) {
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            case 't':
+                sb.append('\t');
+                break;
+            case 'b':
+                sb.append('\b');
+                break;
+            case 'f':
+                sb.append('\f');
+                break;
+            case '"':
+            case '\\':
+            case '/':
+                sb.append(next);
+                break;
+            case 'u':
+                if (i + 4 < end && isHex(s, i + 1, i + 5)) {
+                    sb.append((char) Integer.parseInt(s.substring(i + 1,
+                                                                  i + 5), 16));
+                    i += 4;
+                }
+                else {
+                    sb.append(c).append(next);
+                }
+                break;
+            default:
+                sb.append(c).append(next);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHex(String s, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
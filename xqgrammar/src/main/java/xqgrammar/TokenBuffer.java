@@ -0,0 +1,242 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.util.Arrays;
+
+import org.antlr.runtime.CharStream;
+
+/**
+ * Token storage of {@link XQTokenStream} in compact mode. Token attributes
+ * are kept in parallel primitive arrays instead of one object per token and
+ * {@link XQToken} instances are only created on request. Text is stored only
+ * for the rare tokens whose text was set explicitly by the lexer - all other
+ * tokens get it from the character stream when asked. The same goes for
+ * line and position in line when the lexer leaves them to be computed on
+ * demand.
+ * <p>
+ * The arrays are used as a ring buffer. Tokens keep their absolute indices
+ * and those below {@link #first()} are gone once {@link #discard(int)} has
+ * been called. The buffer only grows when it is full of tokens which have
+ * not been discarded.
+ */
+class TokenBuffer
+{
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int        channel;
+    private CharStream       input;
+    private int[]            types            = new int[INITIAL_CAPACITY];
+    private int[]            starts           = new int[INITIAL_CAPACITY];
+    private int[]            stops            = new int[INITIAL_CAPACITY];
+    // Allocated only for tokens with positions set by the lexer.
+    private int[]            lines;
+    private int[]            columns;
+    private boolean[]        spaceBefore      = new boolean[INITIAL_CAPACITY];
+    private String[]         texts;
+    private int              mask             = INITIAL_CAPACITY - 1;
+    private int              first;
+    private int              size;
+
+    TokenBuffer(int channel)
+    {
+        this.channel = channel;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Retrieves index of the first token still in the buffer.
+     */
+    int first()
+    {
+        return first;
+    }
+
+    /**
+     * Tells whether the next token added will make the buffer grow.
+     */
+    boolean isFull()
+    {
+        return size - first == types.length;
+    }
+
+    /**
+     * Allows the space taken by tokens below specified index to be reused.
+     */
+    void discard(int index)
+    {
+        if (index > first) {
+            first = Math.min(index, size);
+        }
+    }
+
+    /**
+     * Removes all tokens, keeping the arrays for reuse. Tokens added next
+     * may come from another character stream.
+     */
+    void clear()
+    {
+        input = null;
+        first = 0;
+        size = 0;
+    }
+
+    /**
+     * Copies attributes of a token. The token itself is not retained and
+     * may be reused by the lexer.
+     */
+    void add(XQToken token, boolean space)
+    {
+        if (isFull()) {
+            grow();
+        }
+        if (input == null) {
+            input = token.getInputStream();
+        }
+        int k = size & mask;
+        types[k] = token.getType();
+        starts[k] = token.getStartIndex();
+        stops[k] = token.getStopIndex();
+        if (token.hasPosition() && lines == null) {
+            lines = new int[types.length];
+            columns = new int[types.length];
+        }
+        if (lines != null) {
+            lines[k] = token.hasPosition() ? token.getLine() : 0;
+            columns[k] = token.getCharPositionInLine();
+        }
+        spaceBefore[k] = space;
+        String text = token.getExplicitText();
+        if (text != null && texts == null) {
+            texts = new String[types.length];
+        }
+        if (texts != null) {
+            texts[k] = text;
+        }
+        size++;
+    }
+
+    int getType(int i)
+    {
+        return types[slot(i)];
+    }
+
+    int getStart(int i)
+    {
+        return starts[slot(i)];
+    }
+
+    int getStop(int i)
+    {
+        return stops[slot(i)];
+    }
+
+    boolean getSpaceBefore(int i)
+    {
+        return spaceBefore[slot(i)];
+    }
+
+    /**
+     * Creates a token with the attributes stored at specified index.
+     */
+    XQToken get(int i)
+    {
+        int k = slot(i);
+        XQToken token =
+            new XQToken(input, types[k], channel, starts[k], stops[k]);
+        if (lines != null && lines[k] != 0) {
+            token.setLine(lines[k]);
+            token.setCharPositionInLine(columns[k]);
+        }
+        token.setTokenIndex(i);
+        token.spaceBefore = spaceBefore[k];
+        if (texts != null && texts[k] != null) {
+            token.setText(texts[k]);
+        }
+        return token;
+    }
+
+    private int slot(int i)
+    {
+        if (i < first || i >= size) {
+            throw new IndexOutOfBoundsException("Token " + i
+                    + " is not in the buffer.");
+        }
+        return i & mask;
+    }
+
+    private void grow()
+    {
+        int capacity = 2 * types.length;
+        types = resize(types, capacity);
+        starts = resize(starts, capacity);
+        stops = resize(stops, capacity);
+        if (lines != null) {
+            lines = resize(lines, capacity);
+            columns = resize(columns, capacity);
+        }
+        spaceBefore = resize(spaceBefore, capacity);
+        if (texts != null) {
+            texts = resize(texts, capacity);
+        }
+        mask = capacity - 1;
+    }
+
+    // Copies tokens still in the buffer to a new array, each one to its
+    // slot for the new capacity.
+    private int[] resize(int[] array, int capacity)
+    {
+        if (first == 0) {
+            return Arrays.copyOf(array, capacity);
+        }
+        int[] resized = new int[capacity];
+        for (int i = first; i < size; i++) {
+            resized[i & (capacity - 1)] = array[i & mask];
+        }
+        return resized;
+    }
+
+    private boolean[] resize(boolean[] array, int capacity)
+    {
+        if (first == 0) {
+            return Arrays.copyOf(array, capacity);
+        }
+        boolean[] resized = new boolean[capacity];
+        for (int i = first; i < size; i++) {
+            resized[i & (capacity - 1)] = array[i & mask];
+        }
+        return resized;
+    }
+
+    private String[] resize(String[] array, int capacity)
+    {
+        if (first == 0) {
+            return Arrays.copyOf(array, capacity);
+        }
+        String[] resized = new String[capacity];
+        for (int i = first; i < size; i++) {
+            resized[i & (capacity - 1)] = array[i & mask];
+        }
+        return resized;
+    }
+}
@@ -47,4 +47,64 @@ public class XQToken
         super(type, text);
     }
 
+    /**
+     * Overriden in order to compute line from start index of the token
+     * if the lexer did not set it.
+     */
+    @Override
+    public int getLine()
+    {
+        if (line == 0 && start >= 0 && input instanceof AbstractCharStream) {
+            return ((AbstractCharStream) input).getLine(start);
+        }
+        return line;
+    }
+
+    /**
+     * Overriden in order to compute position in line from start index of
+     * the token if the lexer did not set it.
+     */
+    @Override
+    public int getCharPositionInLine()
+    {
+        if (line == 0 && start >= 0 && input instanceof AbstractCharStream) {
+            return ((AbstractCharStream) input).getCharPositionInLine(start);
+        }
+        return charPositionInLine;
+    }
+
+    /**
+     * Tells whether line and position in line are set on the token rather
+     * than computed on demand.
+     */
+    boolean hasPosition()
+    {
+        return line != 0;
+    }
+
+    /**
+     * Reinitializes the token so that a lexer can reuse it for the next
+     * token when the consumer copies attributes of tokens right away.
+     */
+    void set(CharStream input, int type, int channel, int start, int stop)
+    {
+        this.input = input;
+        this.type = type;
+        this.channel = channel;
+        this.start = start;
+        this.stop = stop;
+        this.text = null;
+        this.index = -1;
+        this.spaceBefore = false;
+    }
+
+    /**
+     * Retrieves text set explicitly on the token, without falling back to
+     * the character stream.
+     */
+    String getExplicitText()
+    {
+        return text;
+    }
+
 }
@@ -19,6 +19,7 @@
 package xqgrammar;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.antlr.runtime.CommonToken;
@@ -30,23 +31,125 @@ import org.antlr.runtime.TokenStream;
  * A replacement for CommonTokenStream. Needed because CommonTokenStream
  * is too greedy in consuming tokens from the lexer and therefore does
  * not allow for switching of lexers on the fly which is done in {@link Parser}.
+ * <p>
+ * In compact mode tokens are not kept as objects. Their attributes are
+ * copied into a {@link TokenBuffer} and the lexers are asked to reuse a
+ * single token instance. {@link #get(int)} and {@link #LT(int)} then create
+ * a new token on each call (the last one is cached) while {@link #LA(int)}
+ * does not create tokens at all. Consumers should therefore not rely on
+ * identity of tokens in this mode.
  */
 public class XQTokenStream
     implements TokenStream
 {
     private static final Token EOF_TOKEN   = new CommonToken(Token.EOF);
+    // Number of tokens before current one which are kept in bounded mode,
+    // for the "add-on" parsing in Parser which looks back at them.
+    private static final int   HISTORY     = 2;
     private TokenSource        tokenSource;
     private int                channel     = Token.DEFAULT_CHANNEL;
-    private List<Token>        tokens      = new ArrayList<Token>();
+    private List<Token>        tokens;
+    private TokenBuffer        buffer;
+    private XQToken            cachedToken;
+    private int                cachedIndex = -1;
     private int                index       = -1;
     private int                range       = -1;
-    private int                lastMarker;
+    private boolean            bounded;
+    private boolean            lazyPositions;
+    // Token indices of outstanding markers. Slot 0 is unused - markers
+    // start from 1.
+    private int[]              markers     = new int[8];
+    private int                markDepth   = 0;
     private String[]           tokenNames;
+    // Receives the tokens consumed by the parser, if set - see consume().
+    private ParseListener      listener;
     boolean                    spaceBefore = false;
 
     public XQTokenStream(TokenSource tokenSource)
     {
-        this.tokenSource = tokenSource;
+        this(tokenSource, false);
+    }
+
+    /**
+     * Creates a token stream.
+     * 
+     * @param tokenSource the lexer
+     * @param compact     whether tokens should be stored in compact form
+     */
+    public XQTokenStream(TokenSource tokenSource, boolean compact)
+    {
+        this(tokenSource, compact, false);
+    }
+
+    /**
+     * Creates a token stream which may also keep only a window of tokens
+     * around current position. In bounded mode tokens before both current
+     * position and the oldest outstanding marker are discarded, except for
+     * a couple of them needed by {@link Parser}. Memory used then depends
+     * on lookahead and backtracking depth rather than on size of input,
+     * but {@link #get(int)} fails for discarded tokens.
+     * 
+     * @param tokenSource the lexer
+     * @param compact     whether tokens should be stored in compact form
+     * @param bounded     whether tokens should be discarded once passed;
+     *                    requires compact form
+     */
+    public XQTokenStream(TokenSource tokenSource, boolean compact,
+                         boolean bounded)
+    {
+        if (bounded && !compact) {
+            throw new IllegalArgumentException(
+                "Bounded token stream must be compact.");
+        }
+        this.bounded = bounded;
+        if (compact) {
+            buffer = new TokenBuffer(channel);
+        }
+        else {
+            tokens = new ArrayList<Token>();
+        }
+        setTokenSource(tokenSource);
+    }
+
+    /**
+     * Tells whether the stream stores tokens in compact form.
+     * 
+     * @return true if compact mode is on
+     */
+    public boolean isCompact()
+    {
+        return buffer != null;
+    }
+
+    /**
+     * Tells whether the stream discards tokens it has passed.
+     * 
+     * @return true if bounded mode is on
+     */
+    public boolean isBounded()
+    {
+        return bounded;
+    }
+
+    /**
+     * Discards all tokens and markers, so that the stream can be reused for
+     * new input of its lexer. Storage allocated for tokens so far is kept.
+     * Settings of the stream are kept as well.
+     */
+    public void reset()
+    {
+        if (buffer != null) {
+            buffer.clear();
+        }
+        else {
+            tokens.clear();
+        }
+        cachedToken = null;
+        cachedIndex = -1;
+        index = -1;
+        range = -1;
+        markDepth = 0;
+        spaceBefore = false;
     }
 
     @Override
@@ -58,6 +161,40 @@ public class XQTokenStream
     public void setTokenSource(TokenSource tokenSource)
     {
         this.tokenSource = tokenSource;
+        if (tokenSource instanceof Lexer) {
+            ((Lexer) tokenSource).setSkipHidden(true);
+            ((Lexer) tokenSource).setLazyPositions(lazyPositions);
+            if (buffer != null) {
+                ((Lexer) tokenSource).setReuseTokens(true);
+            }
+        }
+    }
+
+    /**
+     * Set a flag which determines whether lexers feeding this stream leave
+     * line and position in line of tokens to be computed on demand. See
+     * {@link Lexer#setLazyPositions(boolean)}. Must be set before parsing
+     * starts. Default value is "false".
+     * 
+     * @param lazyPositions the value to be set
+     */
+    public void setLazyPositions(boolean lazyPositions)
+    {
+        this.lazyPositions = lazyPositions;
+        if (tokenSource instanceof Lexer) {
+            ((Lexer) tokenSource).setLazyPositions(lazyPositions);
+        }
+    }
+
+    /**
+     * Retrieves the value of the flag which determines whether positions
+     * of tokens are computed on demand.
+     * 
+     * @return value of the flag
+     */
+    public boolean getLazyPositions()
+    {
+        return lazyPositions;
     }
 
     @Override
@@ -84,7 +221,7 @@ public class XQTokenStream
         if (i > range) {
             range = i;
         }
-        return tokens.get(i);
+        return token(i);
     }
 
     @Override
@@ -99,7 +236,7 @@ public class XQTokenStream
             }
             if (!ensureSize(index + offset + 1))
                 return EOF_TOKEN;
-            return tokens.get(index + offset);
+            return token(index + offset);
         }
 
         if (!ensureSize(index + offset + 1))
@@ -108,43 +245,128 @@ public class XQTokenStream
             range = index + offset;
         }
 
-        return tokens.get(index + offset);
+        return token(index + offset);
     }
 
     @Override
     public int LA(int k)
     {
-        return LT(k).getType();
+        if (buffer == null || k == 0) {
+            return LT(k).getType();
+        }
+        if (index + k < 0) {
+            return Token.INVALID_TOKEN_TYPE;
+        }
+        if (!ensureSize(index + k + 1))
+            return Token.EOF;
+        if (index + k > range) {
+            range = index + k;
+        }
+        return buffer.getType(index + k);
+    }
+
+    /**
+     * Retrieves type of the token at specified index without creating a
+     * token in compact mode.
+     * 
+     * @param i index of the token
+     * @return type of the token
+     */
+    public int getType(int i)
+    {
+        return buffer != null ? buffer.getType(i) : tokens.get(i).getType();
+    }
+
+    /**
+     * Retrieves start index of the token at specified index in the character
+     * stream without creating a token in compact mode.
+     * 
+     * @param i index of the token
+     * @return index of the first character of the token
+     */
+    public int getStartIndex(int i)
+    {
+        return buffer != null ? buffer.getStart(i) : ((CommonToken) tokens
+            .get(i)).getStartIndex();
+    }
+
+    /**
+     * Retrieves stop index of the token at specified index in the character
+     * stream without creating a token in compact mode.
+     * 
+     * @param i index of the token
+     * @return index of the last character of the token
+     */
+    public int getStopIndex(int i)
+    {
+        return buffer != null ? buffer.getStop(i) : ((CommonToken) tokens
+            .get(i)).getStopIndex();
     }
 
+    /**
+     * Tells whether the token at specified index is preceded by blank space
+     * without creating a token in compact mode.
+     * 
+     * @param i index of the token
+     * @return true if there is space before the token
+     */
+    public boolean isSpaceBefore(int i)
+    {
+        return buffer != null ? buffer.getSpaceBefore(i)
+                : ((XQToken) tokens.get(i)).spaceBefore;
+    }
+
+    /**
+     * Overriden in order to pass the token consumed to the listener, if
+     * any. Tokens consumed while a marker is outstanding are lookahead of
+     * the parser and are consumed again when matched, so they are not
+     * passed.
+     */
     @Override
     public void consume()
     {
         index++;
+        if (listener != null && markDepth == 0) {
+            listener.token(index < size() ? getType(index) : Token.EOF,
+                           index);
+        }
     }
 
+    /**
+     * Markers are nested: releasing or rewinding to a marker releases all
+     * markers created after it as well.
+     */
     @Override
     public int mark()
     {
-        lastMarker = index;
-        return lastMarker;
+        markDepth++;
+        if (markDepth == markers.length) {
+            markers = Arrays.copyOf(markers, 2 * markers.length);
+        }
+        markers[markDepth] = index;
+        return markDepth;
     }
 
     @Override
     public void release(int marker)
     {
+        markDepth = marker - 1;
     }
 
+    /**
+     * Rewinds to the last outstanding marker without releasing it.
+     */
     @Override
     public void rewind()
     {
-        seek(lastMarker);
+        seek(markers[markDepth]);
     }
 
     @Override
     public void rewind(int marker)
     {
-        seek(marker);
+        seek(markers[marker]);
+        release(marker);
     }
 
     @Override
@@ -156,7 +378,7 @@ public class XQTokenStream
     @Override
     public int size()
     {
-        return tokens.size();
+        return buffer != null ? buffer.size() : tokens.size();
     }
 
     @Override
@@ -180,6 +402,13 @@ public class XQTokenStream
         return toString(start.getTokenIndex(), end.getTokenIndex());
     }
 
+    // Sets the listener to which consumed tokens are passed - see
+    // Parser.setListener().
+    void setListener(ParseListener listener)
+    {
+        this.listener = listener;
+    }
+
     public String[] getTokenNames()
     {
         return tokenNames;
@@ -190,21 +419,45 @@ public class XQTokenStream
         this.tokenNames = tokenNames;
     }
 
+    private Token token(int i)
+    {
+        if (buffer == null) {
+            return tokens.get(i);
+        }
+        if (i != cachedIndex) {
+            cachedToken = buffer.get(i);
+            cachedIndex = i;
+        }
+        return cachedToken;
+    }
+
     private boolean ensureSize(int size)
     {
-        if (size < tokens.size()) {
+        if (size < size()) {
             return true;
         }
-        while (tokens.size() < size) {
+        while (size() < size) {
             Token nextToken = tokenSource.nextToken();
             if (nextToken.getType() == Token.EOF) {
                 return false;
             }
             if (nextToken.getChannel() == channel) {
                 if (nextToken instanceof XQToken) {
-                    ((XQToken) nextToken).spaceBefore = spaceBefore;
+                    if (bounded && buffer.isFull()) {
+                        int oldest = markDepth > 0 ? markers[1] : index;
+                        buffer.discard(Math.min(oldest, index) - HISTORY);
+                    }
+                    // Lexer may have skipped hidden input on its own.
+                    XQToken token = (XQToken) nextToken;
+                    boolean space = spaceBefore || token.spaceBefore;
+                    if (buffer != null) {
+                        buffer.add(token, space);
+                    }
+                    else {
+                        token.spaceBefore = space;
+                        tokens.add(token);
+                    }
                     spaceBefore = false;
-                    tokens.add(nextToken);
                 }
                 else {
                     //System.out.println(nextToken.getClass());
@@ -0,0 +1,317 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.RecognitionException;
+import org.junit.Test;
+
+public class CharStreamTest
+{
+    private static String queries[] =
+                                        {
+            "for $a in b return for $c in d return $c",
+            "<проба b='{$проба}'>проба</проба>",
+            "(: коментар 𝄞 :)\n"
+                    + "let $a := \"𝄞 and €\" return\n"
+                    + "  <e a=\"é\">ж{$a}</e>",
+            "declare variable $a:=123;<abc>{<x>{/a/b/c}</x>}</abc>",
+            "<elem>&#x7b;</elem>",
+            "(# ns:pragma blah#) (#pragma1 blahblah #) {whatever}",
+            "\na;b,c;" };
+
+    @Test
+    public void mappedFileStream()
+        throws Exception
+    {
+        for (String query : queries) {
+            List<String> expected = parse(new ANTLRStringStream(query));
+            assertEquals(expected, parse(new CharSequenceStream(query)));
+            ByteBuffer bytes = ByteBuffer.wrap(query.getBytes("UTF-8"));
+            assertEquals(expected, parse(new MappedFileStream(bytes, null)));
+        }
+    }
+
+    @Test
+    public void mappedFileStreamLookBehind()
+        throws Exception
+    {
+        String text = "aé€𝄞b";
+        ByteBuffer bytes = ByteBuffer.wrap(text.getBytes("UTF-8"));
+        CharStream input = new MappedFileStream(bytes, null);
+        while (input.LA(1) != CharStream.EOF) {
+            input.consume();
+        }
+        for (int i = 1; i <= text.length(); i++) {
+            assertEquals(text.charAt(text.length() - i), input.LA(-i));
+        }
+        assertEquals(CharStream.EOF, input.LA(-text.length() - 1));
+        assertEquals(text, input.substring(0, input.index() - 1));
+    }
+
+    @Test
+    public void byteChannelStream()
+        throws Exception
+    {
+        for (String query : queries) {
+            List<String> expected = parse(new CharSequenceStream(query));
+            assertEquals(expected, parse(stream(query.getBytes("UTF-8"))));
+            byte[] utf16 = query.getBytes("UTF-16LE");
+            ByteChannelStream input = stream(utf16);
+            assertEquals("UTF-16LE", input.getEncoding());
+            assertEquals(expected, parse(input));
+            byte[] bom = concat(new byte[] { (byte) 0xFF, (byte) 0xFE }, utf16);
+            assertEquals(expected, parse(stream(bom)));
+        }
+        // Spans several chunks and reads one byte at a time.
+        String query = ParserBenchmark.libraryModule(100);
+        assertTrue(query.length() > 2 * ByteChannelStream.CHUNK_SIZE);
+        ByteChannelStream input =
+            new ByteChannelStream(new SlowChannel(query.getBytes("UTF-8")),
+                                  null, "UTF-8");
+        assertEquals(parse(new CharSequenceStream(query)), parse(input));
+        assertEquals(query, input.toString());
+    }
+
+    @Test
+    public void byteChannelStreamNonBlocking()
+        throws Exception
+    {
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            try {
+                new ByteChannelStream(pipe.source(), null, "UTF-8");
+                fail("Non-blocking channel should be rejected.");
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+        finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+        // A channel which returns no bytes must not make the stream spin.
+        ReadableByteChannel idle = new SlowChannel(new byte[0]) {
+            @Override
+            public int read(ByteBuffer dst)
+            {
+                return 0;
+            }
+        };
+        try {
+            new ByteChannelStream(idle, null, "UTF-8");
+            fail("Reading no bytes should fail.");
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("blocking"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void byteChannelStreamShortInput()
+        throws Exception
+    {
+        // The writer keeps the pipe open, as a client waiting for a reply.
+        Pipe pipe = Pipe.open();
+        try {
+            String query = "xquery encoding 'ISO-8859-1'; 'é'";
+            pipe.sink().write(ByteBuffer.wrap(query.getBytes("ISO-8859-1")));
+            ByteChannelStream input =
+                new ByteChannelStream(pipe.source(), null, "UTF-8");
+            assertEquals("ISO-8859-1", input.getEncoding());
+            for (int i = 0; i < query.length(); i++) {
+                assertEquals(query.charAt(i), input.LA(i + 1));
+            }
+            pipe.sink().close();
+            assertEquals(CharStream.EOF, input.LA(query.length() + 1));
+        }
+        finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    @Test
+    public void byteChannelStreamEncodingDecl()
+        throws Exception
+    {
+        String query =
+            "(: comment :) xquery version '3.0' encoding 'ISO-8859-1';\n"
+                    + "<e a=\"é\">ü</e>";
+        ByteChannelStream input = stream(query.getBytes("ISO-8859-1"));
+        assertEquals("ISO-8859-1", input.getEncoding());
+        assertEquals(query, input.toString());
+        assertEquals(parse(new CharSequenceStream(query)), parse(input));
+        // The declaration is a hint: byte order mark takes precedence.
+        byte[] bom = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+        input = stream(concat(bom, query.getBytes("UTF-8")));
+        assertEquals("UTF-8", input.getEncoding());
+        assertEquals(query, input.toString());
+        // Unknown encodings are ignored by the stream.
+        input = stream("xquery encoding \"x-unknown\"; 1".getBytes("UTF-8"));
+        assertEquals("UTF-8", input.getEncoding());
+        parse(input);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void invalidEncodingName()
+        throws Exception
+    {
+        parse(new CharSequenceStream("xquery encoding \"8859-1\"; 1"));
+    }
+
+    @Test
+    public void lazyPositions()
+        throws Exception
+    {
+        for (String query : queries) {
+            List<String> expected = parse(new CharSequenceStream(query));
+            byte[] utf8 = query.getBytes("UTF-8");
+            for (boolean compact : new boolean[] { false, true }) {
+                assertEquals(expected, parse(new CharSequenceStream(query),
+                                             compact, true));
+                assertEquals(expected, parse(new MappedFileStream(ByteBuffer
+                    .wrap(utf8), null), compact, true));
+                assertEquals(expected, parse(stream(utf8), compact, true));
+            }
+        }
+    }
+
+    @Test
+    public void lazyPositionsInErrors()
+        throws Exception
+    {
+        String query = "let $a := 'ж'\n  return (: 𝄞 :) $a +\n\t\t)";
+        String expected = errorMessage(new CharSequenceStream(query), false);
+        assertTrue(expected.startsWith("line 3:2 "));
+        assertEquals(expected, errorMessage(new CharSequenceStream(query),
+                                            true));
+        assertEquals(expected, errorMessage(new MappedFileStream(ByteBuffer
+            .wrap(query.getBytes("UTF-8")), null), true));
+    }
+
+    private static String errorMessage(CharStream input, boolean lazy)
+        throws RecognitionException
+    {
+        XQLexer lexer = new XQLexer(input);
+        XQTokenStream tokenStream = new XQTokenStream(lexer, true);
+        tokenStream.setLazyPositions(lazy);
+        XQParser parser = new XQParser(tokenStream);
+        try {
+            parser.module();
+        }
+        catch (RuntimeException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    private static ByteChannelStream stream(byte[] bytes)
+        throws IOException
+    {
+        return new ByteChannelStream(new ByteArrayInputStream(bytes), null);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    // Delivers its bytes one by one, like a slow socket.
+    private static class SlowChannel
+        implements ReadableByteChannel
+    {
+        private final byte[] bytes;
+        private int          position;
+
+        SlowChannel(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            if (position == bytes.length) {
+                return -1;
+            }
+            dst.put(bytes[position++]);
+            return 1;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    static List<String> parse(CharStream input)
+        throws RecognitionException
+    {
+        return parse(input, false);
+    }
+
+    static List<String> parse(CharStream input, boolean compact)
+        throws RecognitionException
+    {
+        return parse(input, compact, false);
+    }
+
+    static List<String> parse(CharStream input, boolean compact,
+                              boolean lazyPositions)
+        throws RecognitionException
+    {
+        XQLexer lexer = new XQLexer(input);
+        XQTokenStream tokenStream = new XQTokenStream(lexer, compact);
+        tokenStream.setLazyPositions(lazyPositions);
+        XQParser parser = new XQParser(tokenStream);
+        parser.module();
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < tokenStream.size(); i++) {
+            XQToken token = (XQToken) tokenStream.get(i);
+            tokens.add(token.getType() + ":" + token.getText() + "@"
+                    + token.getLine() + ":" + token.getCharPositionInLine()
+                    + (token.spaceBefore ? " " : ""));
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,335 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.MismatchedSetException;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+import org.junit.Test;
+
+public class LexerTest
+{
+    private static String queries[] =
+                                        {
+            "for $a in b return for $c in d return $c",
+            "  (: leading :) 1 (: nested (: comment :) here :)+\n\t2 ",
+            "let $a:=$b+$c-123(::)return $a mod $b",
+            "(: only a comment :)",
+            "" };
+
+    @Test
+    public void skipHidden()
+    {
+        for (String query : queries) {
+            List<String> expected = new ArrayList<String>();
+            XQLexer lexer = new XQLexer(new CharSequenceStream(query));
+            boolean space = false;
+            for (Token t = lexer.nextToken(); t.getType() != Token.EOF; t =
+                lexer.nextToken()) {
+                if (t.getChannel() == Token.HIDDEN_CHANNEL) {
+                    space = true;
+                }
+                else {
+                    expected.add(describe(t, space));
+                    space = false;
+                }
+            }
+            List<String> actual = new ArrayList<String>();
+            lexer = new XQLexer(new CharSequenceStream(query));
+            lexer.setSkipHidden(true);
+            for (Token t = lexer.nextToken(); t.getType() != Token.EOF; t =
+                lexer.nextToken()) {
+                actual.add(describe(t, ((XQToken) t).spaceBefore));
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void keywords()
+        throws Exception
+    {
+        Set<String> keywords = new HashSet<String>();
+        XQLexer lexer = new XQLexer();
+        for (int type = 0; type < XQParser.tokenNames.length; type++) {
+            String name = XQParser.tokenNames[type];
+            String keyword = Keywords.keyword(name);
+            if (keyword == null) {
+                continue;
+            }
+            // The keyword rule of the grammar must match exactly the
+            // keyword the table has for it.
+            lexer.setCharStream(new CharSequenceStream(keyword));
+            XQLexer.class.getMethod("m" + name).invoke(lexer);
+            assertEquals(keyword, keyword.length(), lexer.getCharIndex());
+            assertEquals(keyword, type, singleToken(keyword));
+            keywords.add(keyword);
+        }
+        assertTrue(keywords.size() > 150);
+        for (String keyword : keywords) {
+            assertEquals(XQLexer.NCName, singleToken(keyword + "x"));
+            assertEquals(XQLexer.NCName, singleToken(keyword + "-"));
+            assertEquals(XQLexer.NCName, singleToken("x" + keyword));
+            assertEquals(XQLexer.NCName, singleToken(keyword.toUpperCase()
+                    + "é"));
+            String prefix = keyword.substring(0, keyword.length() - 1);
+            if (!keywords.contains(prefix)) {
+                assertEquals(XQLexer.NCName, singleToken(prefix));
+            }
+        }
+    }
+
+    // Name character classes must be the same as those of the grammars.
+    @Test
+    public void nameChars()
+        throws RecognitionException
+    {
+        XQLexer xqLexer = new XQLexer();
+        XMLexer xmLexer = new XMLexer();
+        for (int c = 0; c <= 0xFFFF; c++) {
+            String s = String.valueOf((char) c);
+            boolean startChar = NameChars.isNCNameStartChar(c);
+            boolean nameChar = NameChars.isNCNameChar(c);
+            try {
+                xqLexer.setCharStream(new CharSequenceStream(s));
+                xqLexer.mNCNameStartChar();
+                assertTrue(s, startChar);
+            }
+            catch (MismatchedSetException e) {
+                assertFalse(s, startChar);
+            }
+            try {
+                xqLexer.setCharStream(new CharSequenceStream(s));
+                xqLexer.mNCNameChar();
+                assertTrue(s, nameChar);
+            }
+            catch (MismatchedSetException e) {
+                assertFalse(s, nameChar);
+            }
+            try {
+                xmLexer.setCharStream(new CharSequenceStream(s));
+                xmLexer.mNCNameStartChar();
+                assertTrue(s, startChar);
+            }
+            catch (MismatchedSetException e) {
+                assertFalse(s, startChar);
+            }
+            try {
+                xmLexer.setCharStream(new CharSequenceStream(s));
+                xmLexer.mNCNameChar();
+                assertTrue(s, nameChar);
+            }
+            catch (MismatchedSetException e) {
+                assertFalse(s, nameChar);
+            }
+        }
+        assertFalse(NameChars.isNCNameStartChar(CharStream.EOF));
+        assertFalse(NameChars.isNCNameChar(CharStream.EOF));
+    }
+
+    // Bodies of literals and comments are scanned in bulk, differently for
+    // strings, other character sequences and other streams.
+    @Test
+    public void literalsAndComments()
+    {
+        assertEquals(XQLexer.StringLiteral,
+                     singleToken("\"a\"\"b&#65;&amp;\""));
+        assertEquals(XQLexer.StringLiteral, singleToken("''''"));
+        assertEquals(XQLexer.Pragma, singleToken("(#a b # c )#)"));
+        assertEquals(XQLexer.DirCommentConstructor,
+                     singleToken("<!-- a --->"));
+        assertEquals(XQLexer.DirPIConstructor, singleToken("<?a b?c?>"));
+        String[] literals =
+            { "\"a\"\"b\n c&#65;&#x42;&lt;\" 'it''s\n'",
+                    "(: a (: b\n:) c :)\n (::)(:(:::):)x",
+                    "(# ns:p \n#) (#p#){1}", "<e><!-- x\n- -->\n</e>",
+                    "<?p\n??>\n<![CDATA[ ]] \n]]>", "\"abc", "(: (: :)",
+                    "<!-- x -", "'&q;'" };
+        for (String query : literals) {
+            List<String> expected = tokens(new ANTLRStringStream(query));
+            assertEquals(expected, tokens(new CharSequenceStream(query)));
+            assertEquals(expected, tokens(new CharSequenceStream(
+                new StringBuilder(query))));
+        }
+    }
+
+    @Test
+    public void characterReferences()
+        throws Exception
+    {
+        assertEquals(XQLexer.StringLiteral,
+                     singleToken("\"&#65;&#x10FFFF;&#xd7fF;&#9;\""));
+        String[][] invalid =
+            { { "\"ж&#0;\"", "&#0;" }, { "'ж&#x0;'", "&#x0;" },
+                    { "\"&#xD800;\"", "&#xD800;" },
+                    { "\"&#1114112;\"", "&#1114112;" },
+                    { "\"&#99999999999;\"", "&#99999999999;" } };
+        for (String[] test : invalid) {
+            String query = test[0];
+            ByteBuffer bytes = ByteBuffer.wrap(query.getBytes("UTF-8"));
+            for (CharStream input : new CharStream[] {
+                    new CharSequenceStream(query),
+                    new MappedFileStream(bytes, null) }) {
+                List<String> tokens = tokens(input);
+                assertEquals(1, tokens.size());
+                assertTrue(tokens.get(0), tokens.get(0).endsWith(
+                    "Invalid character constant '" + test[1] + ".'"));
+            }
+        }
+    }
+
+    // DirXmlLexer must produce the same tokens and errors as XMLexer in
+    // every state of the flags, also when errors do not stop it.
+    @Test
+    public void dirXmlLexer()
+    {
+        String[] pieces =
+            { "\"", "'", "\"\"", "''", "&", "&lt;", "&amp;", "&quot;",
+                    "&#x41;", "&#65;", "&#0;", "&q", "&lx", "&#", "<", "</",
+                    "<!", "<!-", "<!-- c -->", "<?p i?>", "<![CDATA[ ]]>",
+                    "]]>", ">", "/>", "/", "=", ":", "{", "{{", "}", "}}", "a",
+                    "abc", "ж", "-", "1", " ", "\t", "\n", "\u0001", "\uD834",
+                    "<a b='c'>", "<a b=\"c\"/>" };
+        Random random = new Random(12345);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            }
+            String text = sb.toString();
+            for (int flags = 0; flags < 8; flags++) {
+                for (boolean breakOnError : new boolean[] { true, false }) {
+                    List<String> expected = new ArrayList<String>();
+                    List<String> actual = new ArrayList<String>();
+                    xmlTokens(new QuietXMLexer(expected), expected, text,
+                              flags, breakOnError);
+                    xmlTokens(new QuietDirXmlLexer(actual), actual, text,
+                              flags, breakOnError);
+                    assertEquals(text, expected, actual);
+                }
+            }
+        }
+    }
+
+    private static void xmlTokens(XMLexer lexer, List<String> tokens,
+                                  String text, int flags, boolean breakOnError)
+    {
+        lexer.setCharStream(new CharSequenceStream(text));
+        lexer.setBreakOnError(breakOnError);
+        lexer.inTag = (flags & 1) != 0;
+        lexer.inQuotAttr = (flags & 2) != 0;
+        lexer.inAposAttr = (flags & 4) != 0;
+        try {
+            for (Token t = lexer.nextToken(); t.getType() != Token.EOF; t =
+                lexer.nextToken()) {
+                tokens.add(describe(t, false) + " " + lexer.inTag + " "
+                        + lexer.inQuotAttr + " " + lexer.inAposAttr);
+            }
+        }
+        catch (RuntimeException e) {
+            tokens.add(e.getMessage());
+        }
+    }
+
+    // Collects error messages along with tokens instead of printing them.
+    private static class QuietXMLexer
+        extends XMLexer
+    {
+        private final List<String> messages;
+
+        QuietXMLexer(List<String> messages)
+        {
+            this.messages = messages;
+        }
+
+        @Override
+        public void emitErrorMessage(String message)
+        {
+            messages.add(message);
+        }
+    }
+
+    private static class QuietDirXmlLexer
+        extends DirXmlLexer
+    {
+        private final List<String> messages;
+
+        QuietDirXmlLexer(List<String> messages)
+        {
+            this.messages = messages;
+        }
+
+        @Override
+        public void emitErrorMessage(String message)
+        {
+            messages.add(message);
+        }
+    }
+
+    private static List<String> tokens(CharStream input)
+    {
+        List<String> tokens = new ArrayList<String>();
+        // An error is reported as well as thrown; the latter is collected.
+        XQLexer lexer = new XQLexer(input) {
+            @Override
+            public void emitErrorMessage(String message)
+            {
+            }
+        };
+        try {
+            for (Token t = lexer.nextToken(); t.getType() != Token.EOF; t =
+                lexer.nextToken()) {
+                tokens.add(describe(t, false));
+            }
+        }
+        catch (RuntimeException e) {
+            tokens.add(e.getMessage());
+        }
+        return tokens;
+    }
+
+    private static int singleToken(String text)
+    {
+        XQLexer lexer = new XQLexer(new CharSequenceStream(text));
+        Token token = lexer.nextToken();
+        assertEquals(text, token.getText());
+        assertEquals(Token.EOF, lexer.nextToken().getType());
+        return token.getType();
+    }
+
+    private static String describe(Token t, boolean spaceBefore)
+    {
+        return (spaceBefore ? " " : "") + t.getType() + ":" + t.getText()
+                + "@" + t.getLine() + ":" + t.getCharPositionInLine();
+    }
+}
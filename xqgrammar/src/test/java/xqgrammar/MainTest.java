@@ -0,0 +1,310 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+public class MainTest
+{
+    @Test
+    public void batch()
+        throws Exception
+    {
+        File dir = File.createTempFile("xqgrammar", "");
+        dir.delete();
+        File sub = new File(dir, "sub");
+        sub.mkdirs();
+        write(new File(dir, "b.xq"), "for $a in b return $a");
+        write(new File(sub, "a.xqy"), "1 +");
+        write(new File(sub, "c.xquery"), "<a>{1</b>");
+        write(new File(sub, "d.txt"), "not a query");
+        File json = new File(dir, "summary.json");
+        String sequential = run(dir, "1", json);
+        String summary = read(json);
+        for (String threads : new String[] { "2", "5" }) {
+            assertEquals(sequential, run(dir, threads, json));
+        }
+        String[] lines = sequential.split("\n");
+        assertEquals(new File(dir, "b.xq").getPath(), lines[0]);
+        assertEquals(new File(sub, "a.xqy").getPath(), lines[1]);
+        assertEquals(new File(sub, "c.xquery").getPath(), lines[2]);
+        assertEquals(3, lines.length);
+        assertTrue(summary, summary.contains("\"files\": 3,"));
+        assertTrue(summary, summary.contains("\"valid\": 1,"));
+        assertTrue(summary, summary.contains("\"errors\": 3,"));
+        assertTrue(summary, summary.contains("\"tokens\": 18,"));
+        assertTrue(summary,
+                   summary.contains("\"tokens\": 8, \"errors\": 2"));
+        assertTrue(summary, summary.contains("'b must match"));
+        delete(dir);
+    }
+
+    @Test
+    public void daemon()
+        throws Exception
+    {
+        String requests =
+            "PARSE 5 a.xq\n1 + 2PARSE 3 b.xq\n1 +FILE /no/such.xq\n"
+                    + "PARSE 10 \u0446.xq\n<\u0446>{1</b>";
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(requests.getBytes("UTF-8")));
+        System.setOut(new PrintStream(printed));
+        try {
+            Main.main(new String[] { "-daemon" });
+        }
+        finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        String[] lines = printed.toString("UTF-8").split("\n");
+        assertEquals("0 0", lines[0]);
+        String error =
+            "\tb.xq: Error - b.xq line 0:-1 no viable alternative at input "
+                    + "'<EOF>'";
+        assertEquals("1 " + (error.length() + 1), lines[1]);
+        assertEquals(error, lines[2]);
+        assertEquals("1 37", lines[3]);
+        assertEquals("\t/no/such.xq: Error - file not found", lines[4]);
+        // Lengths are in bytes.
+        assertEquals("2 ", lines[5].substring(0, 2));
+        int length = Integer.parseInt(lines[5].substring(2));
+        assertEquals(length, (lines[6] + "\n" + lines[7] + "\n")
+            .getBytes("UTF-8").length);
+        assertEquals(8, lines.length);
+    }
+
+    @Test
+    public void daemonMaxQuery()
+        throws Exception
+    {
+        StringBuilder big = new StringBuilder("1");
+        while (big.length() < 2000) {
+            big.append(" + 1");
+        }
+        String requests =
+            "PARSE " + big.length() + " big.xq\n" + big
+                    + "PARSE 5 a.xq\n1 + 2";
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(requests.getBytes("UTF-8")));
+        System.setOut(new PrintStream(printed));
+        try {
+            Main.main(new String[] { "-maxquery", "1", "-daemon" });
+        }
+        finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        String[] lines = printed.toString("UTF-8").split("\n");
+        assertEquals("\tbig.xq: Error - Query of " + big.length()
+                + " bytes is longer than the maximum of 1024.", lines[1]);
+        assertEquals("1 " + (lines[1].length() + 1), lines[0]);
+        // The query skipped does not put the session out of step.
+        assertEquals("0 0", lines[2]);
+        assertEquals(3, lines.length);
+    }
+
+    @Test
+    public void corpus()
+        throws Exception
+    {
+        File log = File.createTempFile("xqgrammar", ".log");
+        File json = File.createTempFile("xqgrammar", ".json");
+        StringBuilder sb = new StringBuilder();
+        sb.append("\"for $a in b\\nreturn $a\"\n");
+        sb.append("\n");
+        sb.append("{ \"user\": { \"id\": [1, 2] }, \"query\": \"1 +\" }\n");
+        sb.append("<a>{\\\"1\\\"}</a>\n");
+        for (int i = 0; i < 20; i++) {
+            sb.append("{\"query\": \"").append(i).append(" * 2\"}\n");
+        }
+        write(log, sb.toString());
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        System.setErr(new PrintStream(errors));
+        try {
+            Main.main(new String[] { "-threads", "3", "-json", json.getPath(),
+                    "-corpus", log.getPath() });
+        }
+        finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        String[] lines = printed.toString("UTF-8").split("\n");
+        assertEquals(23, lines.length);
+        assertTrue(lines[0], lines[0].startsWith(
+                "{ \"line\": 1, \"valid\": true, \"tokens\": 8,"));
+        assertTrue(lines[1], lines[1].startsWith(
+                "{ \"line\": 3, \"valid\": false,"));
+        assertTrue(lines[1], lines[1].contains("no viable alternative"));
+        assertTrue(lines[2], lines[2].startsWith(
+                "{ \"line\": 4, \"valid\": true,"));
+        for (int i = 3; i < lines.length; i++) {
+            assertTrue(lines[i], lines[i].startsWith(
+                    "{ \"line\": " + (i + 2) + ", \"valid\": true,"));
+        }
+        assertTrue(errors.toString(),
+                   errors.toString().startsWith("23 queries, 22 valid,"));
+        String summary = read(json);
+        assertTrue(summary, summary.contains("\"queries\": 23,"));
+        assertTrue(summary, summary.contains("\"valid\": 22,"));
+        assertTrue(summary, summary.contains("\"threads\": 3,"));
+        log.delete();
+        json.delete();
+    }
+
+    @Test
+    public void cacheFile()
+        throws Exception
+    {
+        File dir = File.createTempFile("xqgrammar", "");
+        dir.delete();
+        dir.mkdirs();
+        write(new File(dir, "a.xq"), "for $a in b return $a");
+        write(new File(dir, "b.xq"), "1 +");
+        write(new File(dir, "c.xq"), "<a>{1</b>");
+        File json = File.createTempFile("xqgrammar", ".json");
+        File cache = File.createTempFile("xqgrammar", ".cache");
+        cache.delete();
+        String parsed = run(dir, "2", json, "-cachefile", cache.getPath());
+        String summary = read(json);
+        assertTrue(summary, summary.contains("\"cached\": 0,"));
+        assertTrue(cache.exists());
+        assertEquals(parsed, run(dir, "2", json, "-cachefile",
+                                 cache.getPath()));
+        String cached = read(json);
+        assertTrue(cached, cached.contains("\"cached\": 3,"));
+        // The same results but times.
+        assertEquals(summary.replaceAll("Ms\": [0-9.]+", "")
+            .replace("\"cached\": false", "\"cached\": true")
+            .replace("\"cached\": 0,", "\"cached\": 3,"),
+                     cached.replaceAll("Ms\": [0-9.]+", ""));
+        // Changed files are parsed again.
+        write(new File(dir, "b.xq"), "1 + 2");
+        run(dir, "1", json, "-cachefile", cache.getPath());
+        summary = read(json);
+        assertTrue(summary, summary.contains("\"cached\": 2,"));
+        assertTrue(summary, summary.contains("\"valid\": 2,"));
+        // The other modes give the same results, cached or not.
+        for (String mode : new String[] { "-mmap", "-stream" }) {
+            cache.delete();
+            run(dir, "2", json, mode);
+            String expected = read(json).replaceAll("Ms\": [0-9.]+", "");
+            run(dir, "2", json, mode, "-cachefile", cache.getPath());
+            assertEquals(mode, expected, read(json)
+                .replaceAll("Ms\": [0-9.]+", ""));
+            run(dir, "2", json, mode, "-cachefile", cache.getPath());
+            cached = read(json);
+            assertTrue(cached, cached.contains("\"cached\": 3,"));
+            assertEquals(mode, expected.replace("\"cached\": false",
+                                                "\"cached\": true")
+                .replace("\"cached\": 0,", "\"cached\": 3,"),
+                         cached.replaceAll("Ms\": [0-9.]+", ""));
+        }
+        json.delete();
+        cache.delete();
+        delete(dir);
+    }
+
+    // Runs Main on a directory and returns what it prints to standard
+    // output.
+    private static String run(File dir, String threads, File json,
+                              String... options)
+    {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            String[] arg = new String[options.length + 5];
+            arg[0] = "-threads";
+            arg[1] = threads;
+            arg[2] = "-json";
+            arg[3] = json.getPath();
+            System.arraycopy(options, 0, arg, 4, options.length);
+            arg[arg.length - 1] = dir.getPath();
+            Main.main(arg);
+        }
+        finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+        return printed.toString();
+    }
+
+    private static void write(File file, String content)
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+            return new String(bytes, "UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] entries = file.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                delete(entry);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,338 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ParseServiceTest
+{
+    private static final Dialect CORE =
+                                          new Dialect(Parser.XQUERY_3_0,
+                                                      false, false, false);
+
+    private static final String  queries[] =
+                                               {
+            "for $a in b return $a", "<a b='{1}'>{2}</a>", "1 +",
+            "<a:b></a:c>", "insert node <a/> into /b", "\"&#0;\"",
+            "<a>{1", "declare variable $a := 1; $a" };
+
+    @Test
+    public void parse()
+        throws Exception
+    {
+        ParseService service = new ParseService(4, 8);
+        try {
+            List<Future<ParseResult>> futures =
+                new ArrayList<Future<ParseResult>>();
+            for (int i = 0; i < 50; i++) {
+                for (String query : queries) {
+                    futures.add(service.submit(query, i % 2 == 0 ? CORE
+                            : Dialect.DEFAULT));
+                }
+            }
+            int k = 0;
+            for (int i = 0; i < 50; i++) {
+                for (String query : queries) {
+                    Dialect dialect = i % 2 == 0 ? CORE : Dialect.DEFAULT;
+                    ParseResult result = futures.get(k++).get();
+                    assertEquals(dialect, result.getDialect());
+                    assertEquals(query, expected(query, dialect),
+                                 result.getErrors());
+                }
+            }
+            ParseResult result = service.parse(queries[0], CORE);
+            assertTrue(result.isValid());
+            assertEquals(8, result.getNumTokens());
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void backPressure()
+        throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        blocked.await();
+                    }
+                    catch (InterruptedException e) {
+                    }
+                }
+            });
+            ParseService service = new ParseService(executor, 2);
+            Future<ParseResult> first = service.submit("1", CORE);
+            Future<ParseResult> second = service.submit("2", CORE);
+            assertNull(service.trySubmit("3", CORE, 10,
+                                         TimeUnit.MILLISECONDS));
+            // Cancelling a parse makes room for another one.
+            assertTrue(first.cancel(false));
+            Future<ParseResult> third =
+                service.trySubmit("3", CORE, 10, TimeUnit.MILLISECONDS);
+            assertNotNull(third);
+            blocked.countDown();
+            assertTrue(second.get().isValid());
+            assertTrue(third.get().isValid());
+            try {
+                first.get();
+                fail("Parse should have been cancelled.");
+            }
+            catch (CancellationException e) {
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void interrupt()
+        throws Exception
+    {
+        ParseService service = new ParseService(1, 1);
+        String query = ParserBenchmark.libraryModule(10);
+        Thread.currentThread().interrupt();
+        try {
+            service.parse(query, CORE);
+            fail("Parse should have been stopped.");
+        }
+        catch (CancellationException e) {
+        }
+        finally {
+            Thread.interrupted();
+        }
+        // The parser left half way is reused.
+        assertEquals(expected(query, CORE), service.parse(query, CORE)
+            .getErrors());
+        service.shutdown();
+    }
+
+    // Errors reported by a new parser.
+    @Test
+    public void cache()
+        throws Exception
+    {
+        ParseService service = new ParseService(2, 4);
+        ParseCache cache = new ParseCache(1 << 20);
+        service.setCache(cache);
+        try {
+            ParseResult first = service.parse(queries[2], CORE);
+            assertEquals(expected(queries[2], CORE), first.getErrors());
+            assertTrue(first == service.parse(queries[2], CORE));
+            assertTrue(first == service.submit(new StringBuilder(queries[2]),
+                                               CORE).get());
+            // The dialect is part of the key.
+            ParseResult other = service.parse(queries[2], Dialect.DEFAULT);
+            assertTrue(first != other);
+            assertEquals(2, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+            assertEquals(2, cache.size());
+            assertNull(cache.get(queries[0], CORE));
+            cache.clear();
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.getWeight());
+        }
+        finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void eviction()
+    {
+        ParseResult valid =
+            new ParseResult(CORE, new ArrayList<String>(), 1, 0);
+        // Room for four entries with no errors.
+        ParseCache cache = new ParseCache(1024);
+        for (int i = 0; i < 4; i++) {
+            cache.put("q" + i, CORE, valid);
+        }
+        assertEquals(4, cache.size());
+        // Read entries get a second chance.
+        assertNotNull(cache.get("q0", CORE));
+        assertNotNull(cache.get("q2", CORE));
+        cache.put("q4", CORE, valid);
+        cache.put("q5", CORE, valid);
+        assertEquals(4, cache.size());
+        assertEquals(2, cache.getEvictionCount());
+        assertNull(cache.get("q1", CORE));
+        assertNull(cache.get("q3", CORE));
+        assertNotNull(cache.get("q0", CORE));
+        assertNotNull(cache.get("q2", CORE));
+        assertNotNull(cache.get("q5", CORE));
+        // Entries are weighed by their errors. An entry not yet read gives
+        // way to entries read since the hand passed them.
+        List<String> errors = new ArrayList<String>();
+        errors.add(new String(new char[300]));
+        cache.put("q6", CORE, new ParseResult(CORE, errors, 1, 0));
+        assertEquals(768, cache.getWeight());
+        assertNull(cache.get("q6", CORE));
+        cache.put("q6", CORE, new ParseResult(CORE, errors, 1, 0));
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("q6", CORE));
+        errors.add(new String(new char[300]));
+        cache.put("q7", CORE, new ParseResult(CORE, errors, 1, 0));
+        assertNull(cache.get("q7", CORE));
+    }
+
+    @Test
+    public void persistentCache()
+        throws Exception
+    {
+        File file = File.createTempFile("xqgrammar", ".cache");
+        file.delete();
+        MappedParseCache store = MappedParseCache.open(file);
+        ParseService service = new ParseService(1, 1);
+        service.setCache(new ParseCache(1 << 20, store));
+        for (String query : queries) {
+            service.parse(query, CORE);
+        }
+        store.save();
+        assertEquals(queries.length, store.size());
+
+        // Restarted.
+        store = MappedParseCache.open(file);
+        assertEquals(queries.length, store.size());
+        service.setCache(new ParseCache(1 << 20, store));
+        for (String query : queries) {
+            ParseResult result = store.get(query, CORE);
+            assertNotNull(query, result);
+            assertEquals(CORE, result.getDialect());
+            assertEquals(query, expected(query, CORE), result.getErrors());
+            assertEquals(service.parse(query, CORE).getErrors(),
+                         result.getErrors());
+        }
+        assertEquals(queries.length, service.getCache().getHitCount());
+        assertNull(store.get(queries[0], Dialect.DEFAULT));
+        service.parse(queries[0], Dialect.DEFAULT);
+        store.save();
+        store = MappedParseCache.open(file);
+        assertEquals(queries.length + 1, store.size());
+        assertNotNull(store.get(queries[0], Dialect.DEFAULT));
+        assertNotNull(store.get(queries[2], CORE));
+        service.shutdown();
+
+        // Files which are not caches are taken to be empty.
+        OutputStream out = new FileOutputStream(file);
+        out.write("not a cache".getBytes("UTF-8"));
+        out.close();
+        store = MappedParseCache.open(file);
+        assertEquals(0, store.size());
+        assertNull(store.get(queries[0], CORE));
+        file.delete();
+    }
+
+    @Test
+    public void persistentCacheConcurrentSaves()
+        throws Exception
+    {
+        File dir = File.createTempFile("xqgrammar", "");
+        dir.delete();
+        dir.mkdirs();
+        // Names shorter than the minimum prefix of temporary files work too.
+        final File file = new File(dir, "c");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Void>> saves = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 2; t++) {
+                final Dialect dialect = t == 0 ? CORE : Dialect.DEFAULT;
+                saves.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call()
+                        throws Exception
+                    {
+                        MappedParseCache store = MappedParseCache.open(file);
+                        for (int i = 0; i < 50; i++) {
+                            store.put("query " + i, dialect, new ParseResult(
+                                dialect, new ArrayList<String>(), i, 0));
+                            store.save();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> save : saves) {
+                save.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        // Entries of the other program may be lost, but the file is whole
+        // and no temporary file is left behind.
+        MappedParseCache store = MappedParseCache.open(file);
+        assertTrue(store.size() > 0);
+        assertTrue(store.get("query 49", CORE) != null
+                || store.get("query 49", Dialect.DEFAULT) != null);
+        assertEquals(1, dir.listFiles().length);
+        file.delete();
+        dir.delete();
+    }
+
+    private static List<String> expected(String query, Dialect dialect)
+        throws Exception
+    {
+        final List<String> errors = new ArrayList<String>();
+        XQLexer lexer = new XQLexer(new CharSequenceStream(query));
+        XQTokenStream tokens = new XQTokenStream(lexer);
+        XQParser parser = new XQParser(tokens, dialect) {
+            @Override
+            public void emitErrorMessage(String message)
+            {
+                errors.add(message);
+            }
+        };
+        lexer.setOwner(parser);
+        try {
+            parser.module();
+        }
+        catch (RuntimeException e) {
+            if (errors.isEmpty()) {
+                errors.add(e.getMessage());
+            }
+        }
+        return errors;
+    }
+}
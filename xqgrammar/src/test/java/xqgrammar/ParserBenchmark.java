@@ -0,0 +1,802 @@
+/*=============================================================================
+
+    Copyright 2014 Nikolay Ognyanov
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+
+=============================================================================*/
+
+/*=============================================================================
+
+                                   Remarks
+                                   =======
+   Micro benchmarks for the parser. They take a while and only print timings,
+   so they are disabled by default. Remove the @Ignore annotation of a test
+   to run it. CPU time and allocated memory are measured for current thread
+   only, so each benchmark runs its workload on the calling thread.
+
+=============================================================================*/
+
+package xqgrammar;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class ParserBenchmark
+{
+    private static final int    WARMUP_ROUNDS = 20;
+    private static final int    ROUNDS        = 50;
+    // Number of times each short query is parsed per round.
+    private static final int    SHORT_QUERIES = 200;
+
+    private static final String FRAGMENT      =
+        "declare function local:f($a as xs:integer, $b) {\n"
+            + "  for $x in $a/b/c[@d = 'some text'] "
+            + "let $y := $x + 123 "
+            + "where $y mod 2 eq 0 "
+            + "return <elem attr=\"{$y}\">{$x}</elem>\n"
+            + "};\n";
+
+    private interface StreamFactory
+    {
+        CharStream create(String query);
+    }
+
+    @Ignore
+    @Test
+    public void charSequenceStream()
+        throws RecognitionException
+    {
+        String query = libraryModule(2000);
+        StreamFactory antlrStringStream = new StreamFactory() {
+            @Override
+            public CharStream create(String query)
+            {
+                return new ANTLRStringStream(query);
+            }
+        };
+        StreamFactory charSequenceStream = new StreamFactory() {
+            @Override
+            public CharStream create(String query)
+            {
+                return new CharSequenceStream(query);
+            }
+        };
+        // Warm up both before measuring, so that JIT profiles are not
+        // biased in favor of the first stream type.
+        warmUp(query, antlrStringStream);
+        warmUp(query, charSequenceStream);
+        measure("ANTLRStringStream ", query, antlrStringStream);
+        measure("CharSequenceStream", query, charSequenceStream);
+    }
+
+    @Ignore
+    @Test
+    public void tokenStreamModes()
+        throws RecognitionException
+    {
+        String query = libraryModule(2000);
+        String[] names =
+            { "token objects ", "compact tokens", "lazy positions",
+             "bounded tokens" };
+        boolean[] compact = { false, true, true, true };
+        boolean[] lazy = { false, false, true, true };
+        boolean[] bounded = { false, false, false, true };
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (int mode = 0; mode < names.length; mode++) {
+                parse(new CharSequenceStream(query), compact[mode],
+                      lazy[mode], bounded[mode]);
+            }
+        }
+        for (int mode = 0; mode < names.length; mode++) {
+            long cpuStart = cpuTime();
+            long memStart = allocatedBytes();
+            for (int i = 0; i < ROUNDS; i++) {
+                parse(new CharSequenceStream(query), compact[mode],
+                      lazy[mode], bounded[mode]);
+            }
+            long allocated = allocatedBytes() - memStart;
+            report(names[mode], query.length(), cpuTime() - cpuStart,
+                   allocated);
+            // Memory held by the token stream once the parse is over.
+            long heapStart = usedHeap();
+            XQTokenStream tokenStream =
+                parse(new CharSequenceStream(query), compact[mode],
+                      lazy[mode], bounded[mode]);
+            long retained = usedHeap() - heapStart;
+            int numTokens = tokenStream.size();
+            System.out.println("                 "
+                    + (allocated / ROUNDS / numTokens)
+                    + " bytes/token allocated, " + (retained / numTokens)
+                    + " bytes/token retained");
+        }
+    }
+
+    @Ignore
+    @Test
+    public void nestedDirElem()
+        throws RecognitionException
+    {
+        String query = nestedElements(200, 50);
+        StreamFactory charSequenceStream = new StreamFactory() {
+            @Override
+            public CharStream create(String query)
+            {
+                return new CharSequenceStream(query);
+            }
+        };
+        warmUp(query, charSequenceStream);
+        measure("nested dirElem   ", query, charSequenceStream);
+    }
+
+    @Ignore
+    @Test
+    public void identifiers()
+    {
+        String query = identifiers(20000);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            lex(query);
+        }
+        long cpuStart = cpuTime();
+        long memStart = allocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) {
+            lex(query);
+        }
+        report("identifiers      ", query.length(), cpuTime() - cpuStart,
+               allocatedBytes() - memStart);
+    }
+
+    @Ignore
+    @Test
+    public void nonAsciiNames()
+        throws RecognitionException
+    {
+        String query = nonAsciiNames(5000);
+        StreamFactory charSequenceStream = new StreamFactory() {
+            @Override
+            public CharStream create(String query)
+            {
+                return new CharSequenceStream(query);
+            }
+        };
+        warmUp(query, charSequenceStream);
+        measure("non-ASCII names  ", query, charSequenceStream);
+    }
+
+    @Ignore
+    @Test
+    public void largeLiterals()
+        throws RecognitionException
+    {
+        String query = largeLiterals(100, 10000);
+        StreamFactory charSequenceStream = new StreamFactory() {
+            @Override
+            public CharStream create(String query)
+            {
+                return new CharSequenceStream(query);
+            }
+        };
+        warmUp(query, charSequenceStream);
+        measure("large literals   ", query, charSequenceStream);
+    }
+
+    // Allocation by checks of direct constructors, with tokens in compact
+    // form and positions computed lazily so that little else is allocated.
+    @Ignore
+    @Test
+    public void directConstructors()
+        throws RecognitionException
+    {
+        String query = directConstructors(5000);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parse(new CharSequenceStream(query), true, true, true);
+        }
+        long cpuStart = cpuTime();
+        long memStart = allocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) {
+            parse(new CharSequenceStream(query), true, true, true);
+        }
+        report("dir constructors ", query.length(), cpuTime() - cpuStart,
+               allocatedBytes() - memStart);
+    }
+
+    // Allocation by the lexer itself, with tokens reused as in compact mode
+    // so that what is left is allocated by lexer actions.
+    @Ignore
+    @Test
+    public void characterReferences()
+    {
+        String query = characterReferences(20000);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            lex(query, true);
+        }
+        long cpuStart = cpuTime();
+        long memStart = allocatedBytes();
+        long numTokens = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            numTokens += lex(query, true);
+        }
+        long allocated = allocatedBytes() - memStart;
+        report("character refs   ", query.length(), cpuTime() - cpuStart,
+               allocated);
+        System.out.println("character refs    : " + (allocated / numTokens)
+                + " bytes/token");
+    }
+
+    // Plain XQuery 3.0 parsed by the general parser, with all extensions
+    // and without any, and by the specialized parser ParserFactory picks
+    // for it.
+    @Ignore
+    @Test
+    public void dialects()
+        throws RecognitionException
+    {
+        String query = libraryModule(2000);
+        Dialect core = new Dialect(Parser.XQUERY_3_0, false, false, false);
+        String[] names =
+            { "all extensions   ", "no extensions    ",
+             "factory parser   " };
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (int mode = 0; mode < names.length; mode++) {
+                parse(query, mode == 0 ? Dialect.DEFAULT : core, mode == 2);
+            }
+        }
+        for (int mode = 0; mode < names.length; mode++) {
+            long cpuStart = cpuTime();
+            long memStart = allocatedBytes();
+            for (int i = 0; i < ROUNDS; i++) {
+                parse(query, mode == 0 ? Dialect.DEFAULT : core, mode == 2);
+            }
+            report(names[mode], query.length(), cpuTime() - cpuStart,
+                   allocatedBytes() - memStart);
+        }
+        System.out.println("specialized      : "
+                + ParserFactory.isSpecialized(core));
+    }
+
+    @Ignore
+    @Test
+    public void resetParser()
+        throws RecognitionException
+    {
+        // Short queries, for which setting up a parser costs the most.
+        String[] queries =
+            { "1 + 2", "$a/b[@c = 'd']", "<a b='{1}'>{2}</a>",
+             "for $x in 1 to 10 return $x * $x", FRAGMENT + "1" };
+        String[] names = { "new parser       ", "reset parser     " };
+        int length = 0;
+        for (String query : queries) {
+            length += SHORT_QUERIES * query.length();
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (int mode = 0; mode < names.length; mode++) {
+                parseShort(queries, mode == 1);
+            }
+        }
+        for (int mode = 0; mode < names.length; mode++) {
+            long cpuStart = cpuTime();
+            long memStart = allocatedBytes();
+            for (int i = 0; i < ROUNDS; i++) {
+                parseShort(queries, mode == 1);
+            }
+            report(names[mode], length, cpuTime() - cpuStart,
+                   allocatedBytes() - memStart);
+        }
+    }
+
+    @Ignore
+    @Test
+    public void ast()
+        throws RecognitionException
+    {
+        String query = libraryModule(10);
+        String[] names = { "no tree          ", "Ast              ",
+                "object tree      ", "listener         " };
+        CharSequenceStream empty = new CharSequenceStream("");
+        Parser[] parsers =
+            { new XQParser(new XQTokenStream(new XQLexer(empty), true)),
+                    new xqgrammar.traced.XQParser(new XQTokenStream(
+                        new XQLexer(empty), true)),
+                    new ObjectTreeParser(new XQTokenStream(new XQLexer(
+                        empty), true)),
+                    new xqgrammar.traced.XQParser(new XQTokenStream(
+                        new XQLexer(empty), true)) };
+        parsers[1].setAst(new Ast());
+        // Counts the rules entered, as a single pass analysis would.
+        final int[] count = new int[1];
+        parsers[3].setListener(new ParseListener() {
+            @Override
+            public void enterRule(String ruleName, int ruleIndex)
+            {
+                count[0]++;
+            }
+
+            @Override
+            public void exitRule(String ruleName, int ruleIndex)
+            {
+            }
+
+            @Override
+            public void token(int type, int index)
+            {
+            }
+        });
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (Parser parser : parsers) {
+                parser.reset(new CharSequenceStream(query));
+                parser.module();
+            }
+        }
+        // Build time, with the tree reused or dropped after each parse. The
+        // first pass completes warming up.
+        for (int k = 0; k < 2 * parsers.length; k++) {
+            int mode = k % parsers.length;
+            long cpuStart = cpuTime();
+            long memStart = allocatedBytes();
+            for (int i = 0; i < ROUNDS; i++) {
+                parsers[mode].reset(new CharSequenceStream(query));
+                parsers[mode].module();
+            }
+            if (k >= parsers.length) {
+                report(names[mode], query.length(), cpuTime() - cpuStart,
+                       allocatedBytes() - memStart);
+            }
+        }
+        // Memory of trees kept.
+        int numNodes = parsers[1].getAst().size();
+        List<Object> trees = new ArrayList<Object>();
+        for (int mode = 1; mode <= 2; mode++) {
+            long heapStart = usedHeap();
+            for (int i = 0; i < ROUNDS; i++) {
+                Parser parser = parsers[mode];
+                if (mode == 1) {
+                    parser.setAst(new Ast(numNodes));
+                }
+                parser.reset(new CharSequenceStream(query));
+                parser.module();
+                trees.add(mode == 1 ? parser.getAst()
+                        : ((ObjectTreeParser) parser).root);
+            }
+            long heap = usedHeap() - heapStart;
+            System.out.println(names[mode] + " : " + numNodes
+                    + " nodes/parse, " + heap / ROUNDS / numNodes
+                    + " bytes/node kept");
+            trees.clear();
+        }
+    }
+
+    static String libraryModule(int numFunctions)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("module namespace local = 'http://www.example.com/local';\n");
+        for (int i = 0; i < numFunctions; i++) {
+            sb.append(FRAGMENT);
+        }
+        return sb.toString();
+    }
+
+    // A sequence of element trees nested to specified depth, each level
+    // with an attribute value template and enclosed expressions.
+    static String nestedElements(int numTrees, int depth)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < numTrees; i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            for (int j = 0; j < depth; j++) {
+                sb.append("<e").append(j).append(" a=\"{$x}-").append(j)
+                    .append("\">{$y}text");
+            }
+            for (int j = depth - 1; j >= 0; j--) {
+                sb.append("{").append(j).append("}</e").append(j).append(">");
+            }
+        }
+        return sb.append(")").toString();
+    }
+
+    // Element, attribute and variable names in Cyrillic, both in XQuery
+    // and in direct XML.
+    static String nonAsciiNames(int numElements)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < numElements; i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append("<проба").append(i)
+                .append(" атрибут='{$променлива}'>{$проба/дете/име}</проба")
+                .append(i).append(">");
+        }
+        return sb.append(")").toString();
+    }
+
+    // A sequence of long string literals, each one after a long comment and
+    // with an occasional escape or entity reference.
+    static String largeLiterals(int numLiterals, int length)
+    {
+        String words = "Lorem ipsum dolor sit amet, consectetur adipiscing. ";
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < numLiterals; i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append("(: ");
+            for (int j = 0; j < length / words.length(); j++) {
+                sb.append(words);
+            }
+            sb.append(":)\n\"");
+            for (int j = 0; j < length / words.length(); j++) {
+                sb.append(words).append(j % 10 == 0 ? "&amp;\"\" " : "");
+            }
+            sb.append("\"");
+        }
+        return sb.append(")").toString();
+    }
+
+    // Keywords, names which are prefixes or extensions of keywords and
+    // names which are not related to keywords at all.
+    static String identifiers(int numNames)
+    {
+        String[] names =
+            { "for", "forest", "let", "letter", "ancestor-or-self",
+             "ancestor-or", "descendant", "sibling", "return", "returning",
+             "where", "nowhere", "order", "ordered", "item", "items",
+             "value", "xs", "integer", "local", "x1", "Nan", "NaN" };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numNames; i++) {
+            sb.append(names[i % names.length])
+                .append(i % 7 == 0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    // Elements with prefixed names, comments, processing instructions,
+    // CDATA sections and pragmas.
+    static String directConstructors(int numElements)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < numElements; i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append("<p:elem").append(i % 10)
+                .append(" a='v'><!-- comment - text --><?target data?>")
+                .append("<p:child><![CDATA[<data>]]></p:child>text</p:elem")
+                .append(i % 10).append(">,\n(# p:pragma content #) {")
+                .append(i).append("}");
+        }
+        return sb.append(")").toString();
+    }
+
+    // String literals made mostly of character references.
+    static String characterReferences(int numLiterals)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < numLiterals; i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append("\"&#").append(32 + i % 1000).append(";&#x")
+                .append(Integer.toHexString(0x400 + i % 256)).append(";a\"");
+        }
+        return sb.append(")").toString();
+    }
+
+    // Lexer alone, without the parser.
+    static int lex(String query)
+    {
+        return lex(query, false);
+    }
+
+    static int lex(String query, boolean reuseTokens)
+    {
+        XQLexer lexer = new XQLexer(new CharSequenceStream(query));
+        lexer.setReuseTokens(reuseTokens);
+        int numTokens = 0;
+        while (lexer.nextToken().getType() != Token.EOF) {
+            numTokens++;
+        }
+        return numTokens;
+    }
+
+    private static void warmUp(String query, StreamFactory factory)
+        throws RecognitionException
+    {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parse(factory.create(query));
+        }
+    }
+
+    private static void measure(String name, String query,
+                                StreamFactory factory)
+        throws RecognitionException
+    {
+        long cpuStart = cpuTime();
+        long memStart = allocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) {
+            parse(factory.create(query));
+        }
+        report(name, query.length(), cpuTime() - cpuStart,
+               allocatedBytes() - memStart);
+    }
+
+    static void parse(CharStream input)
+        throws RecognitionException
+    {
+        parse(input, false, false, false);
+    }
+
+    static XQTokenStream parse(CharStream input, boolean compact,
+                               boolean lazyPositions, boolean bounded)
+        throws RecognitionException
+    {
+        XQLexer lexer = new XQLexer(input);
+        XQTokenStream tokenStream =
+            new XQTokenStream(lexer, compact, bounded);
+        tokenStream.setLazyPositions(lazyPositions);
+        XQParser parser = new XQParser(tokenStream);
+        parser.module();
+        return tokenStream;
+    }
+
+    private static void parse(String query, Dialect dialect, boolean factory)
+        throws RecognitionException
+    {
+        XQTokenStream tokenStream =
+            new XQTokenStream(new XQLexer(new CharSequenceStream(query)),
+                              true);
+        Parser parser =
+            factory ? ParserFactory.newParser(tokenStream, dialect)
+                    : new XQParser(tokenStream, dialect);
+        parser.module();
+    }
+
+    @Ignore
+    @Test
+    public void parseService()
+        throws Exception
+    {
+        // Wall clock time, as the parses run on the threads of the service.
+        String query = libraryModule(10);
+        int numQueries = 20000;
+        int numCores = Runtime.getRuntime().availableProcessors();
+        for (int numThreads = 1;; numThreads *= 2) {
+            numThreads = Math.min(numThreads, numCores);
+            ParseService service =
+                new ParseService(numThreads, 4 * numThreads);
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                List<Future<ParseResult>> results =
+                    new ArrayList<Future<ParseResult>>();
+                for (int i = 0; i < numQueries; i++) {
+                    results.add(service.submit(query, Dialect.DEFAULT));
+                }
+                for (Future<ParseResult> result : results) {
+                    result.get();
+                }
+                long time = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.println(numThreads + " threads : "
+                            + (numQueries * 1000000000L / time)
+                            + " parses/s");
+                }
+            }
+            service.shutdown();
+            if (numThreads == numCores) {
+                break;
+            }
+        }
+    }
+
+    @Ignore
+    @Test
+    public void daemon()
+        throws Exception
+    {
+        // Wall clock time per file, JVM start included for the one-shot CLI.
+        File file = File.createTempFile("xqgrammar", ".xq");
+        file.deleteOnExit();
+        OutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(libraryModule(10).getBytes("UTF-8"));
+        fileOut.close();
+        String java =
+            System.getProperty("java.home") + File.separator + "bin"
+                    + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        int numRuns = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < numRuns; i++) {
+            Process process =
+                new ProcessBuilder(java, "-cp", classPath, "xqgrammar.Main",
+                                   file.getPath()).redirectErrorStream(true)
+                    .start();
+            drain(process.getInputStream());
+            process.waitFor();
+        }
+        System.out.println("one-shot CLI     : "
+                + (System.nanoTime() - start) / numRuns / 1000000
+                + " ms/file");
+        Process process =
+            new ProcessBuilder(java, "-cp", classPath, "xqgrammar.Main",
+                               "-daemon").start();
+        OutputStream requests = process.getOutputStream();
+        DataInputStream responses =
+            new DataInputStream(process.getInputStream());
+        byte[] request = ("FILE " + file.getPath() + "\n").getBytes("UTF-8");
+        int numRequests = 2000;
+        long warmTime = 0;
+        for (int i = 0; i < numRequests; i++) {
+            start = System.nanoTime();
+            requests.write(request);
+            requests.flush();
+            // Header "errors length" and the error lines.
+            String header = "";
+            for (int c = responses.read(); c != '\n'; c = responses.read()) {
+                header += (char) c;
+            }
+            responses.skipBytes(Integer.parseInt(header.split(" ")[1]));
+            long time = System.nanoTime() - start;
+            if (i == 0) {
+                System.out.println("daemon, first    : " + time / 1000000
+                        + " ms/file");
+            }
+            else if (i >= numRequests / 2) {
+                warmTime += time;
+            }
+        }
+        System.out.println("daemon, warm     : " + warmTime
+                / (numRequests - numRequests / 2) / 1000 + " us/file");
+        requests.close();
+        process.waitFor();
+    }
+
+    private static void drain(InputStream in)
+        throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) >= 0) {
+        }
+        in.close();
+    }
+
+    // Parses each query SHORT_QUERIES times with new parsers or with one
+    // parser reset for each query.
+    private static void parseShort(String[] queries, boolean reset)
+        throws RecognitionException
+    {
+        XQParser parser = null;
+        for (int i = 0; i < SHORT_QUERIES; i++) {
+            for (String query : queries) {
+                CharSequenceStream input = new CharSequenceStream(query);
+                if (reset && parser != null) {
+                    parser.reset(input);
+                }
+                else {
+                    parser =
+                        new XQParser(new XQTokenStream(new XQLexer(input),
+                                                       true));
+                }
+                parser.module();
+            }
+        }
+    }
+
+    // Builds a tree of objects the way ANTLR's CommonTree does - an object
+    // for each node with a list of its children.
+    private static final class ObjectTreeParser
+        extends xqgrammar.traced.XQParser
+    {
+        private ObjectNode root;
+        private ObjectNode current;
+
+        ObjectTreeParser(XQTokenStream input)
+        {
+            super(input);
+        }
+
+        @Override
+        public void traceIn(String ruleName, int ruleIndex)
+        {
+            if (state.backtracking > 0) {
+                return;
+            }
+            ObjectNode node = new ObjectNode(ruleIndex, input.index() + 1);
+            if (current == null) {
+                root = node;
+            }
+            else {
+                node.parent = current;
+                if (current.children == null) {
+                    current.children = new ArrayList<ObjectNode>();
+                }
+                current.children.add(node);
+            }
+            current = node;
+        }
+
+        @Override
+        public void traceOut(String ruleName, int ruleIndex)
+        {
+            if (state.backtracking > 0) {
+                return;
+            }
+            current.stop = input.index();
+            current = current.parent;
+        }
+    }
+
+    private static final class ObjectNode
+    {
+        private final int        kind;
+        private final int        start;
+        private int              stop;
+        private ObjectNode       parent;
+        private List<ObjectNode> children;
+
+        ObjectNode(int kind, int start)
+        {
+            this.kind = kind;
+            this.start = start;
+        }
+    }
+
+    static void report(String name, int length, long cpuTime, long allocated)
+    {
+        System.out.println(name + " : "
+                + (cpuTime / ROUNDS / 1000) + " us/parse, "
+                + (allocated / ROUNDS / 1024) + " KB/parse ("
+                + (length / 1024) + " KB of input)");
+    }
+
+    static long cpuTime()
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long allocatedBytes()
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
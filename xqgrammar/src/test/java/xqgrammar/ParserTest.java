@@ -18,15 +18,51 @@
 
 package xqgrammar;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CharStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
 import org.junit.Test;
 
 public class ParserTest
 {
+    // Queries which are valid in some dialects only.
+    private static String dialectQueries[] =
+                                        {
+            "insert node <a/> into /b",
+            "copy $t := $x modify delete node $t/a return $t",
+            "declare updating function local:f() { () }; 1",
+            "declare revalidation lax; 1",
+            "while (1) { exit returning 1; }",
+            "declare simple function local:f() { 1 }; 1",
+            "declare sequential function local:f() { $a := 1; }; 1",
+            "declare unassignable variable $a := 1; 1",
+            "declare assignable variable $a := 1; 1",
+            "1; 2;",
+            "//a[. contains text 'x']",
+            "declare ft-option using stemming; 1",
+            "for $a score $s in b return $s",
+            "let score $s := 1 return $s",
+            "<a:b c='{1}'><c:d/></a:b>", "<a:b></a:c>",
+            "<проба b='{$проба}'>проба</проба>", "<elem>&#x7b;</elem>" };
+
     private static String queries[] =
                                         {
             "for $a in b return for $c in d return $c",
@@ -36,7 +72,8 @@ public class ParserTest
             "copy $t:s := $target modify rename node $t as 'something' return $t",
             "declare variable $a:=123;<abc>{<x>{/a/b/c}</x>}</abc>",
             "<elem>&#x7b;</elem>",
-            "(# ns:pragma blah#) (#pragma1 blahblah #) {whatever}", "\na;b,c;" };
+            "(# ns:pragma blah#) (#pragma1 blahblah #) {whatever}", "\na;b,c;",
+            "<a x=\"1\"/>, <b>{<c y='{2}'>t</c>, <c/>}</b>, <d>{1}{2}</d>" };
 
     @Test
     public void test()
@@ -54,4 +91,572 @@ public class ParserTest
             assertTrue(parser.getNumberOfSyntaxErrors() == 0);
         }
     }
+
+    @Test
+    public void charSequenceStream()
+        throws RecognitionException
+    {
+        for (int i = 0; i < queries.length; i++) {
+            CharSequenceStream input = new CharSequenceStream(queries[i]);
+            XQLexer lexer = new XQLexer(input);
+            XQTokenStream tokens = new XQTokenStream(lexer);
+            XQParser parser = new XQParser(tokens);
+            tokens.setTokenNames(parser.getTokenNames());
+            parser.module();
+            assertTrue(tokens.LT(1).getType() == Token.EOF);
+            assertTrue(lexer.getNumberOfSyntaxErrors() == 0);
+            assertTrue(parser.getNumberOfSyntaxErrors() == 0);
+        }
+    }
+
+    @Test
+    public void compactTokenStream()
+        throws RecognitionException
+    {
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(
+                CharStreamTest.parse(new CharSequenceStream(queries[i])),
+                CharStreamTest.parse(new CharSequenceStream(queries[i]), true));
+        }
+    }
+
+    @Test
+    public void boundedTokenStream()
+        throws RecognitionException
+    {
+        for (int i = 0; i < queries.length; i++) {
+            parseBounded(queries[i]);
+        }
+        XQTokenStream tokens = parseBounded(ParserBenchmark.libraryModule(200));
+        try {
+            tokens.get(0);
+            fail("Token 0 should have been discarded.");
+        }
+        catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    @Test
+    public void boundedTokenStreamElemName()
+        throws RecognitionException
+    {
+        // Opening tag is long gone when closing tag is parsed.
+        StringBuilder sb = new StringBuilder("0");
+        for (int i = 1; i < 1000; i++) {
+            sb.append(", ").append(i);
+        }
+        parseBounded("<a:b>{" + sb + "}</a:b>");
+        try {
+            parseBounded("<a:b>{" + sb + "}</a:c>");
+            fail("Closing tag name should not match.");
+        }
+        catch (RuntimeException e) {
+        }
+    }
+
+    @Test
+    public void directConstructors()
+        throws Exception
+    {
+        String query =
+            "<p:e><!-- c - c --><?pi  some content ?><?pi?></p:e>,"
+                    + "(# ns:p  c c #) (#p#) {1}";
+        byte[] utf8 = query.getBytes("UTF-8");
+        CharStream[] inputs =
+            { new CharSequenceStream(query),
+                    new MappedFileStream(ByteBuffer.wrap(utf8), null) };
+        for (CharStream input : inputs) {
+            for (boolean compact : new boolean[] { false, true }) {
+                input.seek(0);
+                XQTokenStream tokens =
+                    new XQTokenStream(new XQLexer(input), compact);
+                final List<String> parts = new ArrayList<String>();
+                XQParser parser = new XQParser(tokens) {
+                    @Override
+                    protected void checkDirComment()
+                        throws RecognitionException
+                    {
+                        super.checkDirComment();
+                        parts.add(parseDirComment());
+                    }
+
+                    @Override
+                    protected void checkDirPI()
+                        throws RecognitionException
+                    {
+                        super.checkDirPI();
+                        Pair<String, String> pi = parseDirPI();
+                        parts.add(pi.getFirst() + "|" + pi.getSecond());
+                    }
+                };
+                parser.module();
+                for (int i = 0; i < tokens.size(); i++) {
+                    if (tokens.getType(i) == XQParser.Pragma) {
+                        tokens.seek(i);
+                        Pair<Pair<String, String>, String> pragma =
+                            parser.parsePragma();
+                        parts.add(pragma.getFirst().getFirst() + "|"
+                                + pragma.getFirst().getSecond() + "|"
+                                + pragma.getSecond());
+                    }
+                }
+                assertEquals(Arrays.asList(" c - c ", "pi|some content ",
+                                           "pi|", "ns|p|c c ", "|p|"), parts);
+            }
+        }
+        String[] invalid =
+            { "<!-- a -- b -->", "<!-- a --->", "<?xMl c?>",
+                    "<a:b></a:c>", "<ab></a>" };
+        for (String bad : invalid) {
+            try {
+                parseBounded(bad);
+                fail(bad);
+            }
+            catch (RuntimeException e) {
+            }
+        }
+        parseBounded("<?xmlx c?>");
+    }
+
+    @Test
+    public void reset()
+        throws Exception
+    {
+        // Valid and invalid queries, the latter failing in all kinds of
+        // places - within direct XML and enclosed expressions too.
+        List<String> all = new ArrayList<String>();
+        all.addAll(Arrays.asList(queries));
+        all.addAll(Arrays.asList(dialectQueries));
+        all.addAll(Arrays.asList("1 +", "<a>{1", "<a b='{(: x :)2}'>",
+                                 "<a><b>{<c>{</c>}</b></a>", "<a:b></a:c>",
+                                 "\"&#0;\"", "<!-- a -- b -->", "(: x ",
+                                 "<a>{1}</a>; <b/> union (", "<?xml c?>"));
+        all.add(ParserBenchmark.libraryModule(20));
+        Random random = new Random(17);
+        for (boolean[] mode : new boolean[][] { { false, false },
+                { true, false }, { true, true } }) {
+            XQTokenStream tokens = null;
+            XQParser parser = null;
+            for (int i = 0; i < 3 * all.size(); i++) {
+                String query = all.get(random.nextInt(all.size()));
+                CharStream input =
+                    i % 2 == 0 ? new CharSequenceStream(query)
+                            : new MappedFileStream(ByteBuffer.wrap(query
+                                .getBytes("UTF-8")), null);
+                if (parser == null) {
+                    tokens = new XQTokenStream(new XQLexer(input), mode[0],
+                                               mode[1]);
+                    parser = quietParser(tokens);
+                }
+                else {
+                    parser.reset(input);
+                }
+                assertEquals(query, parseFresh(query, i % 2 == 0, mode),
+                             describeParse(parser, tokens));
+            }
+            // Parse of the same input again, with line numbers restarted.
+            parser.reset(new CharSequenceStream(queries[8]));
+            String result = describeParse(parser, tokens);
+            parser.reset();
+            assertEquals(result, describeParse(parser, tokens));
+        }
+    }
+
+    @Test
+    public void dialects()
+        throws Exception
+    {
+        Dialect xquery10 =
+            new Dialect(Parser.XQUERY_1_0, false, false, false);
+        Dialect updateOnly =
+            new Dialect(Parser.XQUERY_3_0, true, false, false);
+        String update = "copy $t := $x modify delete node $t/a return $t";
+        String scripting = "while (1) { exit returning 1; }";
+        String fullText = "//a[. contains text 'x']";
+        assertTrue(accepts(update, Dialect.DEFAULT));
+        assertTrue(accepts(update, updateOnly));
+        assertTrue(!accepts(update, xquery10));
+        assertTrue(accepts(scripting, Dialect.DEFAULT));
+        assertTrue(!accepts(scripting, updateOnly));
+        assertTrue(accepts(fullText, Dialect.DEFAULT));
+        assertTrue(!accepts(fullText, updateOnly));
+        assertEquals(Dialect.DEFAULT, Parser.getDefaultDialect());
+        XQLexer lexer = new XQLexer(new CharSequenceStream("1"));
+        XQParser parser = new XQParser(new XQTokenStream(lexer), xquery10);
+        assertEquals(xquery10, parser.getDialect());
+        try {
+            new Dialect(2, true, true, true);
+            fail("Unknown version should be rejected.");
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void concurrentDialects()
+        throws Exception
+    {
+        final String[] queries =
+            { "insert node <a/> into /b",
+                    "copy $t := $x modify delete node $t/a return $t",
+                    "declare updating function local:f() { () }; 1",
+                    "while (1) { exit returning 1; }",
+                    "declare simple function local:f() { 1 }; 1",
+                    "//a[. contains text 'x']",
+                    "declare ft-option using stemming; 1",
+                    "<a:b c='{1}'><c:d/></a:b>", "<a:b></a:c>",
+                    ParserTest.queries[1], ParserTest.queries[4] };
+        final Dialect[] dialects = allDialects();
+        final boolean[][] expected =
+            new boolean[dialects.length][queries.length];
+        for (int i = 0; i < dialects.length; i++) {
+            for (int j = 0; j < queries.length; j++) {
+                expected[i][j] = accepts(queries[j], dialects[i]);
+            }
+        }
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call()
+                        throws Exception
+                    {
+                        Random random = new Random(seed);
+                        start.await();
+                        for (int n = 0; n < 500; n++) {
+                            int i = random.nextInt(dialects.length);
+                            int j = random.nextInt(queries.length);
+                            if (accepts(queries[j], dialects[i])
+                                    != expected[i][j]) {
+                                return dialects[i] + ": " + queries[j];
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                assertEquals(null, result.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parserFactory()
+        throws Exception
+    {
+        // The build generates a parser for XQuery 3.0 without extensions.
+        assertTrue(ParserFactory.isSpecialized(new Dialect(Parser.XQUERY_3_0,
+                                                           false, false,
+                                                           false)));
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            for (Dialect dialect : allDialects()) {
+                for (String query : dialectQueries) {
+                    XQTokenStream tokens =
+                        new XQTokenStream(new XQLexer(new CharSequenceStream(
+                            query)));
+                    Parser parser = ParserFactory.newParser(tokens, dialect);
+                    assertEquals(dialect, parser.getDialect());
+                    assertEquals(ParserFactory.isSpecialized(dialect),
+                                 parser.getClass() != XQParser.class);
+                    assertTrue(Arrays.equals(XQParser.tokenNames,
+                                             parser.getTokenNames()));
+                    boolean accepted = true;
+                    try {
+                        parser.module();
+                    }
+                    catch (RuntimeException e) {
+                        // messages may differ: the alternatives are not there
+                        accepted = false;
+                    }
+                    assertEquals(dialect + ": " + query,
+                                 accepts(query, dialect), accepted);
+                }
+            }
+        }
+        finally {
+            System.setErr(err);
+        }
+    }
+
+    static Dialect[] allDialects()
+    {
+        Dialect[] dialects = new Dialect[16];
+        for (int i = 0; i < dialects.length; i++) {
+            dialects[i] =
+                new Dialect(i < 8 ? Parser.XQUERY_1_0 : Parser.XQUERY_3_0,
+                            (i & 4) != 0, (i & 2) != 0, (i & 1) != 0);
+        }
+        return dialects;
+    }
+
+    @Test
+    public void ast()
+        throws Exception
+    {
+        String query =
+            "declare variable $v := 1;\n"
+                    + "for $a in (1, $v) return <a b=\"{$a}\">x</a>";
+        XQTokenStream tokens =
+            new XQTokenStream(new XQLexer(new CharSequenceStream(query)));
+        try {
+            new XQParser(tokens).setAst(new Ast());
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // only the traced parser builds trees
+        }
+        Parser parser = new xqgrammar.traced.XQParser(tokens);
+        // Grows as needed.
+        Ast ast = new Ast(4);
+        parser.setAst(ast);
+        parser.module();
+        assertEquals("module", ast.getKindName(0));
+        assertEquals(-1, ast.getParent(0));
+        assertEquals(query, ast.getText(0, tokens));
+        for (int node = 1; node < ast.size(); node++) {
+            int parent = ast.getParent(node);
+            assertTrue(parent >= 0 && parent < node);
+            assertTrue(ast.getTokenStartIndex(node)
+                    >= ast.getTokenStartIndex(parent));
+            assertTrue(ast.getTokenStopIndex(node)
+                    <= ast.getTokenStopIndex(parent));
+            int sibling = ast.getNextSibling(node);
+            if (sibling >= 0) {
+                assertEquals(parent, ast.getParent(sibling));
+                assertTrue(ast.getTokenStartIndex(sibling)
+                        > ast.getTokenStopIndex(node));
+            }
+        }
+        List<String> found = new ArrayList<String>();
+        Ast.Cursor cursor = ast.cursor();
+        do {
+            String kind = cursor.getKindName();
+            if (kind.equals("varDecl") || kind.equals("forBinding")
+                    || kind.equals("dirElemConstructor")) {
+                found.add(kind + ": " + cursor.getText(tokens));
+            }
+        } while (cursor.gotoNext());
+        assertEquals(Arrays.asList("varDecl: variable $v := 1",
+                                   "forBinding: $a in (1, $v)",
+                                   "dirElemConstructor: <a b=\"{$a}\">x</a>"),
+                     found);
+
+        cursor.gotoNode(0);
+        assertTrue(cursor.gotoFirstChild());
+        assertEquals("mainModule", cursor.getKindName());
+        assertTrue(!cursor.gotoNextSibling());
+        assertTrue(cursor.gotoParent());
+        assertTrue(!cursor.gotoParent());
+        assertEquals(0, cursor.getNode());
+
+        // Cleared by reset.
+        parser.reset(new CharSequenceStream("1"));
+        parser.module();
+        assertTrue(ast.toString(),
+                   ast.toString().startsWith("(module (mainModule prolog "));
+        String tree = ast.toString().replaceAll("\\)+$", "");
+        assertTrue(tree, tree.endsWith(" (literal numericLiteral"));
+        assertEquals(ast.toString().replaceAll("[^(]", "").length(),
+                     ast.toString().replaceAll("[^)]", "").length());
+    }
+
+    @Test
+    public void listener()
+        throws Exception
+    {
+        String query =
+            "declare boundary-space preserve;\n"
+                    + "declare function local:f($a) { <a>{$a}</a> };\n"
+                    + "local:f(1)";
+        // Plain, compact and bounded token streams.
+        for (int mode = 0; mode < 3; mode++) {
+            final XQTokenStream tokens =
+                new XQTokenStream(new XQLexer(new CharSequenceStream(query)),
+                                  mode > 0, mode > 1);
+            Parser parser = new xqgrammar.traced.XQParser(tokens);
+            final List<String> events = new ArrayList<String>();
+            final int[] depth = new int[2];
+            final int[] lastToken = { -1 };
+            parser.setListener(new ParseListener() {
+                @Override
+                public void enterRule(String ruleName, int ruleIndex)
+                {
+                    depth[1] = Math.max(depth[1], ++depth[0]);
+                    if (ruleName.equals("functionDecl")
+                            || ruleName.equals("dirElemConstructor")
+                            || ruleName.equals("varRef")
+                            || ruleName.equals("boundarySpaceDecl")) {
+                        events.add(ruleName);
+                    }
+                }
+
+                @Override
+                public void exitRule(String ruleName, int ruleIndex)
+                {
+                    depth[0]--;
+                    if (ruleName.equals("boundarySpaceDecl")) {
+                        events.add("/" + ruleName);
+                    }
+                }
+
+                @Override
+                public void token(int type, int index)
+                {
+                    assertEquals(lastToken[0] + 1, index);
+                    lastToken[0] = index;
+                    if (type == XQParser.PRESERVE || type == Token.EOF) {
+                        events.add(type == Token.EOF ? "EOF"
+                                : tokens.get(index).getText());
+                    }
+                }
+            });
+            parser.module();
+            assertEquals(Arrays.asList("boundarySpaceDecl", "preserve",
+                                       "/boundarySpaceDecl", "functionDecl",
+                                       "dirElemConstructor", "varRef", "EOF"),
+                         events);
+            assertEquals(0, depth[0]);
+            assertEquals(tokens.size(), lastToken[0]);
+
+            // Events of the same rules as the tree.
+            Ast ast = new Ast();
+            parser.setAst(ast);
+            depth[1] = 0;
+            parser.reset(new CharSequenceStream(query));
+            events.clear();
+            lastToken[0] = -1;
+            parser.module();
+            assertEquals(7, events.size());
+            int maxDepth = 0;
+            for (int node = 0; node < ast.size(); node++) {
+                int d = 0;
+                for (int n = node; n >= 0; n = ast.getParent(n)) {
+                    d++;
+                }
+                maxDepth = Math.max(maxDepth, d);
+            }
+            assertEquals(maxDepth, depth[1]);
+        }
+
+        // Tokens are passed before a bounded stream discards them.
+        final XQTokenStream tokens =
+            new XQTokenStream(new XQLexer(new CharSequenceStream(
+                ParserBenchmark.libraryModule(200))), true, true);
+        final StringBuilder text = new StringBuilder();
+        Parser parser = new xqgrammar.traced.XQParser(tokens);
+        parser.setListener(new ParseListener() {
+            @Override
+            public void enterRule(String ruleName, int ruleIndex)
+            {
+            }
+
+            @Override
+            public void exitRule(String ruleName, int ruleIndex)
+            {
+            }
+
+            @Override
+            public void token(int type, int index)
+            {
+                if (type != Token.EOF) {
+                    text.append(tokens.get(index).getText());
+                }
+            }
+        });
+        parser.module();
+        try {
+            tokens.get(0);
+            fail("Token 0 should have been discarded.");
+        }
+        catch (IndexOutOfBoundsException e) {
+        }
+        assertEquals(ParserBenchmark.libraryModule(200).replaceAll("\\s", ""),
+                     text.toString().replaceAll("\\s", ""));
+    }
+
+    // Errors of the lexer as well go through the parser, and so nowhere.
+    private static XQParser quietParser(XQTokenStream tokens)
+    {
+        XQParser parser = new XQParser(tokens) {
+            @Override
+            public void emitErrorMessage(String message)
+            {
+            }
+        };
+        ((Lexer) tokens.getTokenSource()).setOwner(parser);
+        return parser;
+    }
+
+    private static String parseFresh(String query, boolean charSequence,
+                                     boolean[] mode)
+        throws Exception
+    {
+        CharStream input =
+            charSequence ? new CharSequenceStream(query)
+                    : new MappedFileStream(ByteBuffer.wrap(query
+                        .getBytes("UTF-8")), null);
+        XQTokenStream tokens =
+            new XQTokenStream(new XQLexer(input), mode[0], mode[1]);
+        return describeParse(quietParser(tokens), tokens);
+    }
+
+    // The error message or else the number of tokens and the last one.
+    private static String describeParse(XQParser parser, XQTokenStream tokens)
+        throws RecognitionException
+    {
+        try {
+            parser.module();
+        }
+        catch (RuntimeException e) {
+            return e.getMessage();
+        }
+        Token last = tokens.LT(-1);
+        return tokens.size() + " " + last.getText() + " " + last.getLine()
+                + ":" + last.getCharPositionInLine();
+    }
+
+    private static boolean accepts(String query, Dialect dialect)
+        throws RecognitionException
+    {
+        XQTokenStream tokens =
+            new XQTokenStream(new XQLexer(new CharSequenceStream(query)));
+        XQParser parser = new XQParser(tokens, dialect) {
+            @Override
+            public void emitErrorMessage(String message)
+            {
+            }
+        };
+        try {
+            parser.module();
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static XQTokenStream parseBounded(String query)
+        throws RecognitionException
+    {
+        CharSequenceStream input = new CharSequenceStream(query);
+        XQLexer lexer = new XQLexer(input);
+        XQTokenStream tokens = new XQTokenStream(lexer, true, true);
+        XQParser parser = quietParser(tokens);
+        parser.module();
+        assertTrue(tokens.LT(1).getType() == Token.EOF);
+        assertTrue(parser.getNumberOfSyntaxErrors() == 0);
+        return tokens;
+    }
 }
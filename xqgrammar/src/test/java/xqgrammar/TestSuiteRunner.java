@@ -129,6 +129,8 @@ public class TestSuiteRunner
     private static final String CODE_ATTRIBUTE      = "code";
     private static final String TYPE_ATTRIBUTE      = "type";
     private static final String VALUE_ATTRIBUTE     = "value";
+    // Whether to keep tokens in compact form - see XQTokenStream.
+    private static final boolean COMPACT_TOKENS     = true;
 
     private static enum CatalogType
     {
@@ -225,6 +227,9 @@ public class TestSuiteRunner
         failOK.add("xs/anyURI.xml:cbcl-anyURI-012b");
     }
 
+    // Reset for each test rather than created anew.
+    private XQParser                              parser;
+
     @Before
     public void init()
     {
@@ -252,6 +257,7 @@ public class TestSuiteRunner
         Collection<XQTest> tests = loadTests(testSuiteBasePath);
         System.out.println("Running tests ...");
         long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+        long memStart = allocatedBytes(threadMXBean);
         for (XQTest xqTest : tests) {
             String spec = xqTest.getDependency("spec");
             String feature = xqTest.getDependency("feature");
@@ -294,10 +300,13 @@ public class TestSuiteRunner
         }
         long cpuTime =
             (threadMXBean.getCurrentThreadCpuTime() - cpuStart) / 1000000;
+        long allocated =
+            (allocatedBytes(threadMXBean) - memStart) / (1024 * 1024);
 
         System.out.println("Number of tests : " + numTests);
         System.out.println("Number of errors: " + numErrors);
         System.out.println("CPU Time        : " + cpuTime + "ms");
+        System.out.println("Allocated       : " + allocated + "MB");
         System.out.println();
 
         return numErrors == 0;
@@ -387,15 +396,29 @@ public class TestSuiteRunner
         throws IOException, RecognitionException
     {
         ANTLRStringStream source = new ANTLRStringStream(query, length);
-        XQLexer lexer = new XQLexer(source);
-        XQTokenStream tokenStream = new XQTokenStream(lexer);
-        XQParser parser = new XQParser(tokenStream);
+        if (parser == null) {
+            XQLexer lexer = new XQLexer(source);
+            parser =
+                new XQParser(new XQTokenStream(lexer, COMPACT_TOKENS));
+        }
+        else {
+            parser.reset(source);
+        }
         parser.module();
-        if (tokenStream.LT(1).getType() != Token.EOF) {
+        if (parser.getTokenStream().LT(1).getType() != Token.EOF) {
             throw new RuntimeException("Extra input after end of expression.");
         }
     }
 
+    private static long allocatedBytes(ThreadMXBean threadMXBean)
+    {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
     private static class XQTest
     {
         private String              path;